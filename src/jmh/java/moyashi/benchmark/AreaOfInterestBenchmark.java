@@ -0,0 +1,164 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.benchmark;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import moyashi.benchmark.QuadTreeBenchmark.Item;
+import moyashi.quadtree.AreaListener;
+import moyashi.quadtree.QuadTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * One tick of moving entities with every player told what entered or left its view.
+ *
+ * @author Low Teck Wei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class AreaOfInterestBenchmark {
+
+    private static final float VIEW_SIZE = 256;
+
+    @Param({"10000", "100000"})
+    public int entityCount;
+
+    @Param({"500", "5000"})
+    public int playerCount;
+
+    @Param({"8"})
+    public int nodeCapacity;
+
+    private Item[] items;
+    private float[] views;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(entityCount);
+        float[] positions = new float[entityCount * 2];
+        Distribution.MOVING.positions(random, positions, 2);
+
+        items = new Item[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            Item item = items[i] = new Item();
+            item.minX = positions[i * 2];
+            item.minY = positions[i * 2 + 1];
+            item.width = Distribution.size(random);
+            item.height = Distribution.size(random);
+            item.velocityX = (random.nextFloat() * 2 - 1) * Distribution.MAX_SPEED;
+            item.velocityY = (random.nextFloat() * 2 - 1) * Distribution.MAX_SPEED;
+        }
+
+        views = new float[playerCount * 2];
+        Distribution.UNIFORM.positions(new Random(playerCount), views, 2);
+    }
+
+    private QuadTree<Item> load() {
+        QuadTree<Item> quadTree = new QuadTree<>(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+        for (Item item : items) {
+            quadTree.insert(item);
+        }
+        return quadTree;
+    }
+
+    @Benchmark
+    public int subscriptions(Subscribed subscribed) {
+        subscribed.events = 0;
+        for (Item item : items) {
+            item.move();
+        }
+        subscribed.quadTree.refresh();
+        return subscribed.events;
+    }
+
+    //What subscriptions replace, a window search per player diffed against the previous tick
+    @Benchmark
+    public int searchAndDiff(Diffed diffed) {
+        int events = 0;
+        for (Item item : items) {
+            item.move();
+        }
+        diffed.quadTree.refresh();
+        for (int i = 0; i < playerCount; i++) {
+            Set<Item> view = diffed.visible.get(i);
+            diffed.quadTree.search(diffed.result, views[i * 2], views[i * 2 + 1], VIEW_SIZE, VIEW_SIZE);
+            int entered = 0;
+            for (Item item : diffed.result) {
+                if (!view.contains(item)) {
+                    entered++;
+                }
+            }
+            //Whatever was visible and is not anymore has left
+            events += entered + view.size() - (diffed.result.size() - entered);
+            view.clear();
+            view.addAll(diffed.result);
+            diffed.result.clear();
+        }
+        return events;
+    }
+
+    //Each approach has its own tree, so a benchmark only builds what it uses
+    @State(Scope.Benchmark)
+    public static class Subscribed implements AreaListener<Item> {
+
+        private QuadTree<Item> quadTree;
+        private int events;
+
+        @Setup(Level.Trial)
+        public void setup(AreaOfInterestBenchmark benchmark) {
+            quadTree = benchmark.load();
+            for (int i = 0; i < benchmark.playerCount; i++) {
+                quadTree.subscribe(benchmark.views[i * 2], benchmark.views[i * 2 + 1], VIEW_SIZE, VIEW_SIZE, this);
+            }
+        }
+
+        @Override
+        public void enter(int subscription, Item item) {
+            events++;
+        }
+
+        @Override
+        public void leave(int subscription, Item item) {
+            events++;
+        }
+
+        @Override
+        public void move(int subscription, Item item) {
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Diffed {
+
+        private QuadTree<Item> quadTree;
+        private List<Set<Item>> visible;
+        private final List<Item> result = new ArrayList<>();
+
+        @Setup(Level.Trial)
+        public void setup(AreaOfInterestBenchmark benchmark) {
+            quadTree = benchmark.load();
+            visible = new ArrayList<>(benchmark.playerCount);
+            for (int i = 0; i < benchmark.playerCount; i++) {
+                quadTree.search(result, benchmark.views[i * 2], benchmark.views[i * 2 + 1], VIEW_SIZE, VIEW_SIZE);
+                visible.add(new HashSet<>(result));
+                result.clear();
+            }
+        }
+    }
+}
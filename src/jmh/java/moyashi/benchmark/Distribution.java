@@ -0,0 +1,60 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.benchmark;
+
+import java.util.Random;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public enum Distribution {
+
+    //Spread evenly across the world, never moves
+    UNIFORM,
+    //Packed around a handful of hot spots, never moves
+    CLUSTERED,
+    //Spread evenly across the world, every item moves each frame
+    MOVING;
+
+    public static final float WORLD_SIZE = 4096, MIN_ITEM_SIZE = 1, MAX_ITEM_SIZE = 8, MAX_SPEED = 4;
+    private static final int CLUSTERS = 16;
+    private static final float CLUSTER_RADIUS = WORLD_SIZE / 64;
+
+    //Fills position[i * dimensions + d] with a point inside the world
+    public void positions(Random random, float[] position, int dimensions) {
+        int count = position.length / dimensions;
+        float[] centers = new float[CLUSTERS * dimensions];
+        for (int i = 0; i < centers.length; i++) {
+            centers[i] = CLUSTER_RADIUS + random.nextFloat() * (WORLD_SIZE - CLUSTER_RADIUS * 2);
+        }
+
+        for (int i = 0; i < count; i++) {
+            int cluster = random.nextInt(CLUSTERS);
+            for (int d = 0; d < dimensions; d++) {
+                float value;
+                if (this == CLUSTERED) {
+                    value = centers[cluster * dimensions + d] + (float) random.nextGaussian() * CLUSTER_RADIUS;
+                } else {
+                    value = random.nextFloat() * WORLD_SIZE;
+                }
+                position[i * dimensions + d] = clamp(value);
+            }
+        }
+    }
+
+    public boolean isMoving() {
+        return this == MOVING;
+    }
+
+    public static float clamp(float value) {
+        return Math.max(0, Math.min(WORLD_SIZE - MAX_ITEM_SIZE, value));
+    }
+
+    public static float size(Random random) {
+        return MIN_ITEM_SIZE + random.nextFloat() * (MAX_ITEM_SIZE - MIN_ITEM_SIZE);
+    }
+}
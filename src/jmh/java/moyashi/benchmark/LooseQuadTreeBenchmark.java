@@ -0,0 +1,121 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.benchmark;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import moyashi.benchmark.QuadTreeBenchmark.Item;
+import moyashi.quadtree.QuadTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ * Items sitting on the grid midlines, e.g. roads and walls, which a regular quadtree keeps in its upper nodes.
+ *
+ * @author Low Teck Wei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class LooseQuadTreeBenchmark {
+
+    private static final int QUERIES = 1024, GRID_LINES = 16;
+    private static final float QUERY_SIZE = 64, WALL_THICKNESS = 4;
+
+    @Param({"10000", "100000"})
+    public int entityCount;
+
+    @Param({"8"})
+    public int nodeCapacity;
+
+    //1 is a regular quadtree
+    @Param({"1", "1.5", "2"})
+    public float looseness;
+
+    //Share of items that are walls on the grid lines
+    @Param({"0.1"})
+    public float wallRatio;
+
+    private Item[] items;
+    private float[] queries;
+    private int queryIndex;
+    private QuadTree<Item> quadTree;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(entityCount);
+        float[] positions = new float[entityCount * 2];
+        Distribution.UNIFORM.positions(random, positions, 2);
+
+        float cell = Distribution.WORLD_SIZE / GRID_LINES;
+        items = new Item[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            Item item = items[i] = new Item();
+            if (random.nextFloat() < wallRatio) {
+                //A wall segment up to a cell long, centred on a grid line
+                float line = random.nextInt(GRID_LINES - 1) * cell + cell - WALL_THICKNESS / 2;
+                float length = Distribution.size(random) * cell / Distribution.MAX_ITEM_SIZE;
+                float along = Math.min(positions[i * 2], Distribution.WORLD_SIZE - length);
+                if (random.nextBoolean()) {
+                    item.minX = along;
+                    item.minY = line;
+                    item.width = length;
+                    item.height = WALL_THICKNESS;
+                } else {
+                    item.minX = line;
+                    item.minY = along;
+                    item.width = WALL_THICKNESS;
+                    item.height = length;
+                }
+            } else {
+                item.minX = positions[i * 2];
+                item.minY = positions[i * 2 + 1];
+                item.width = Distribution.size(random);
+                item.height = Distribution.size(random);
+            }
+        }
+
+        queries = new float[QUERIES * 2];
+        Distribution.UNIFORM.positions(new Random(QUERIES), queries, 2);
+
+        quadTree = new QuadTree<>(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+        quadTree.setLooseness(looseness);
+        for (Item item : items) {
+            quadTree.insert(item);
+        }
+    }
+
+    @Benchmark
+    public int count() {
+        int index = queryIndex;
+        queryIndex = (queryIndex + 1) % QUERIES;
+        return quadTree.count(queries[index * 2], queries[index * 2 + 1], QUERY_SIZE, QUERY_SIZE);
+    }
+
+    @Benchmark
+    public int overlappingPairs() {
+        int[] pairs = new int[1];
+        quadTree.forEachOverlappingPair((first, second) -> pairs[0]++);
+        return pairs[0];
+    }
+
+    @Benchmark
+    public QuadTree<Item> insert() {
+        QuadTree<Item> quadTree = new QuadTree<>(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+        quadTree.setLooseness(looseness);
+        for (Item item : items) {
+            quadTree.insert(item);
+        }
+        return quadTree;
+    }
+}
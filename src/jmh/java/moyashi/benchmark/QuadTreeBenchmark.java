@@ -0,0 +1,533 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.benchmark;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import moyashi.quadtree.Circle;
+import moyashi.quadtree.ConcurrentQuadTree;
+import moyashi.quadtree.Leaf;
+import moyashi.quadtree.MappedQuadTree;
+import moyashi.quadtree.PackedQuadTree;
+import moyashi.quadtree.QuadTree;
+import moyashi.quadtree.QuadTreeSnapshot;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class QuadTreeBenchmark {
+
+    private static final int QUERIES = 1024, NEAREST = 8, PARTITIONS = 8;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entityCount;
+
+    @Param({"8", "32"})
+    public int nodeCapacity;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    public Distribution distribution;
+
+    private Item[] items;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(entityCount);
+        float[] positions = new float[entityCount * 2];
+        distribution.positions(random, positions, 2);
+
+        items = new Item[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            Item item = items[i] = new Item();
+            item.minX = positions[i * 2];
+            item.minY = positions[i * 2 + 1];
+            item.width = Distribution.size(random);
+            item.height = Distribution.size(random);
+            if (distribution.isMoving()) {
+                item.velocityX = (random.nextFloat() * 2 - 1) * Distribution.MAX_SPEED;
+                item.velocityY = (random.nextFloat() * 2 - 1) * Distribution.MAX_SPEED;
+            }
+        }
+    }
+
+    private QuadTree<Item> load() {
+        QuadTree<Item> quadTree = new QuadTree<>(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+        for (Item item : items) {
+            quadTree.insert(item);
+        }
+        return quadTree;
+    }
+
+    @Benchmark
+    public QuadTree<Item> bulkLoad() {
+        return load();
+    }
+
+    //Starts from a 64th of the world and grows the root as items arrive
+    @Benchmark
+    public QuadTree<Item> loadGrowing() {
+        QuadTree<Item> quadTree = new QuadTree<>(nodeCapacity, 0, 0, Distribution.WORLD_SIZE / 64, Distribution.WORLD_SIZE / 64);
+        quadTree.setAutoGrow(true);
+        for (Item item : items) {
+            quadTree.insert(item);
+        }
+        return quadTree;
+    }
+
+    @Benchmark
+    public QuadTree<Item> bulkLoadZOrder() {
+        return QuadTree.build(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE, Arrays.asList(items), false);
+    }
+
+    @Benchmark
+    public QuadTree<Item> bulkLoadZOrderParallel() {
+        return QuadTree.build(nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE, Arrays.asList(items), true);
+    }
+
+    //One simulation frame: move every mover then refresh the whole tree
+    @Benchmark
+    public QuadTree<Item> refresh(Loaded loaded) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        loaded.quadTree.refresh();
+        return loaded.quadTree;
+    }
+
+    @Benchmark
+    public QuadTree<Item> refreshParallel(Loaded loaded) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        loaded.quadTree.refreshParallel();
+        return loaded.quadTree;
+    }
+
+    //Only every 20th item moves, the others are never touched
+    @Benchmark
+    public QuadTree<Item> refreshDirty(Loaded loaded) {
+        if (distribution.isMoving()) {
+            for (int i = 0; i < items.length; i += 20) {
+                items[i].move();
+                loaded.quadTree.markDirty(items[i]);
+            }
+        }
+        loaded.quadTree.refreshDirty();
+        return loaded.quadTree;
+    }
+
+    //Broad phase of one collision frame
+    @Benchmark
+    public int overlappingPairs(Loaded loaded) {
+        int[] pairs = new int[1];
+        loaded.quadTree.forEachOverlappingPair((first, second) -> pairs[0]++);
+        return pairs[0];
+    }
+
+    @Benchmark
+    public int overlappingPairsParallel(Loaded loaded) {
+        LongAdder pairs = new LongAdder();
+        loaded.quadTree.forEachOverlappingPairParallel((first, second) -> pairs.increment());
+        return pairs.intValue();
+    }
+
+    @Benchmark
+    public int join(Loaded loaded, Probes probes) {
+        int[] pairs = new int[1];
+        probes.probeQuadTree.join(loaded.quadTree, (first, second) -> pairs[0]++);
+        return pairs[0];
+    }
+
+    @Benchmark
+    public int joinParallel(Loaded loaded, Probes probes) {
+        LongAdder pairs = new LongAdder();
+        probes.probeQuadTree.joinParallel(loaded.quadTree, (first, second) -> pairs.increment());
+        return pairs.intValue();
+    }
+
+    //What join replaces, one window search per probe
+    @Benchmark
+    public int joinBySearch(Loaded loaded, Probes probes) {
+        int pairs = 0;
+        for (Item probe : probes.probes) {
+            pairs += loaded.quadTree.count(probe.minX, probe.minY, probe.width, probe.height);
+        }
+        return pairs;
+    }
+
+    @Benchmark
+    public List<Item> search(Loaded loaded, Query query) {
+        float[] window = query.next();
+        query.result.clear();
+        return loaded.quadTree.search(query.result, window[0], window[1], query.querySize, query.querySize);
+    }
+
+    //Region select, only items lying inside the window
+    @Benchmark
+    public List<Item> searchContained(Loaded loaded, Query query) {
+        float[] window = query.next();
+        query.result.clear();
+        return loaded.quadTree.searchContained(query.result, window[0], window[1], query.querySize, query.querySize);
+    }
+
+    @Benchmark
+    public int count(Loaded loaded, Query query) {
+        float[] window = query.next();
+        return loaded.quadTree.count(window[0], window[1], query.querySize, query.querySize);
+    }
+
+    //Radius query, e.g. an explosion, with the query size as diameter
+    @Benchmark
+    public int circleCount(Loaded loaded, Query query) {
+        float[] window = query.next();
+        float radius = query.querySize / 2;
+        query.circle.set(window[0] + radius, window[1] + radius, radius);
+        return loaded.quadTree.count(query.circle);
+    }
+
+    //What circleCount replaces, the bounding square filtered afterwards
+    @Benchmark
+    public int circleBySearch(Loaded loaded, Query query) {
+        float[] window = query.next();
+        float radius = query.querySize / 2;
+        query.circle.set(window[0] + radius, window[1] + radius, radius);
+        query.result.clear();
+        int count = 0;
+        for (Item item : loaded.quadTree.search(query.result, window[0], window[1], query.querySize, query.querySize)) {
+            if (query.circle.intersects(item.minX, item.minY, item.width, item.height)) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    @Benchmark
+    public int mappedCount(Mapped mapped, Query query) {
+        float[] window = query.next();
+        return mapped.mappedQuadTree.count(window[0], window[1], query.querySize, query.querySize);
+    }
+
+    @Benchmark
+    public int nearest(Loaded loaded, Query query) {
+        float[] window = query.next();
+        return loaded.quadTree.nearest(window[0], window[1], NEAREST, (item, distance) -> true);
+    }
+
+    //Hit-scan, first item along the diagonal within the query size
+    @Benchmark
+    public Item raycast(Loaded loaded, Query query) {
+        float[] window = query.next();
+        return loaded.quadTree.raycast(window[0], window[1], 1, 1, query.querySize);
+    }
+
+    //Every item along the window's diagonal
+    @Benchmark
+    public int segment(Loaded loaded, Query query) {
+        float[] window = query.next();
+        return loaded.quadTree.segment(window[0], window[1], window[0] + query.querySize, window[1] + query.querySize, (item, distance) -> true);
+    }
+
+    @Benchmark
+    public QuadTree<Item> publishSnapshot(Loaded loaded) {
+        loaded.quadTree.publishSnapshot();
+        return loaded.quadTree;
+    }
+
+    //Run with -t to measure concurrent readers
+    @Benchmark
+    public List<Item> snapshotSearch(Published published, Query query) {
+        float[] window = query.next();
+        query.result.clear();
+        try (QuadTreeSnapshot<Item> snapshot = published.quadTree.acquireSnapshot()) {
+            return snapshot.search(query.result, window[0], window[1], query.querySize, query.querySize);
+        }
+    }
+
+    @Benchmark
+    public ConcurrentQuadTree<Item> concurrentRefresh(Concurrent concurrent) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        concurrent.concurrentQuadTree.refresh();
+        return concurrent.concurrentQuadTree;
+    }
+
+    @Benchmark
+    public PackedQuadTree<Item> packedRefresh(Packed packed) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        packed.packedQuadTree.refresh();
+        return packed.packedQuadTree;
+    }
+
+    @Benchmark
+    public List<Item> packedSearch(Packed packed, Query query) {
+        float[] window = query.next();
+        query.result.clear();
+        return packed.packedQuadTree.search(query.result, window[0], window[1], query.querySize, query.querySize);
+    }
+
+    //Removes an item and inserts it back somewhere else
+    @Benchmark
+    public QuadTree<Item> churn(Loaded loaded, Moves moves) {
+        int index = moves.next();
+        Item item = items[index];
+        loaded.quadTree.remove(item);
+        moves.swap(item, index);
+        loaded.quadTree.insert(item);
+        return loaded.quadTree;
+    }
+
+    //Moves an item the same way as churn, by handle instead of looking the item up
+    @Benchmark
+    public QuadTree<Item> handleChurn(Handles handles, Moves moves) {
+        int index = moves.next();
+        Item item = items[index];
+        moves.swap(item, index);
+        handles.handleQuadTree.update(handles.handles[index], item.minX, item.minY, item.width, item.height);
+        return handles.handleQuadTree;
+    }
+
+    //Each engine and feature has its own state, so a benchmark only builds what it uses
+    @State(Scope.Benchmark)
+    public static class Loaded {
+
+        private QuadTree<Item> quadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            quadTree = benchmark.load();
+        }
+    }
+
+    //A loaded tree that has published its snapshot
+    @State(Scope.Benchmark)
+    public static class Published {
+
+        private QuadTree<Item> quadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            quadTree = benchmark.load();
+            quadTree.publishSnapshot();
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Packed {
+
+        private PackedQuadTree<Item> packedQuadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            packedQuadTree = new PackedQuadTree<>(benchmark.nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+            for (Item item : benchmark.items) {
+                packedQuadTree.insert(item);
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Concurrent {
+
+        private ConcurrentQuadTree<Item> concurrentQuadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            concurrentQuadTree = new ConcurrentQuadTree<>(benchmark.nodeCapacity, PARTITIONS, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+            for (Item item : benchmark.items) {
+                concurrentQuadTree.insert(item);
+            }
+        }
+    }
+
+    //Written from its own tree, so Loaded benchmarks are not held to a file they never read
+    @State(Scope.Benchmark)
+    public static class Mapped {
+
+        private MappedQuadTree mappedQuadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) throws IOException {
+            Map<Item, Integer> ids = new IdentityHashMap<>();
+            for (int i = 0; i < benchmark.items.length; i++) {
+                ids.put(benchmark.items[i], i);
+            }
+            Path path = Files.createTempFile("quadtree", ".bin");
+            path.toFile().deleteOnExit();
+            benchmark.load().write(path, ids::get);
+            mappedQuadTree = MappedQuadTree.open(path);
+        }
+    }
+
+    //Same items added through register, moved by handle
+    @State(Scope.Benchmark)
+    public static class Handles {
+
+        private QuadTree<Item> handleQuadTree;
+        private int[] handles;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            handleQuadTree = new QuadTree<>(benchmark.nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+            handles = new int[benchmark.entityCount];
+            for (int i = 0; i < benchmark.entityCount; i++) {
+                Item item = benchmark.items[i];
+                handles[i] = handleQuadTree.register(item, item.minX, item.minY, item.width, item.height);
+            }
+        }
+    }
+
+    //A tenth as many items as the main tree, e.g. projectiles joined against units
+    @State(Scope.Benchmark)
+    public static class Probes {
+
+        private Item[] probes;
+        private QuadTree<Item> probeQuadTree;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            Random random = new Random(benchmark.entityCount * 31L);
+            float[] positions = new float[Math.max(1, benchmark.entityCount / 10) * 2];
+            benchmark.distribution.positions(random, positions, 2);
+            probes = new Item[positions.length / 2];
+            probeQuadTree = new QuadTree<>(benchmark.nodeCapacity, 0, 0, Distribution.WORLD_SIZE, Distribution.WORLD_SIZE);
+            for (int i = 0; i < probes.length; i++) {
+                Item probe = probes[i] = new Item();
+                probe.minX = positions[i * 2];
+                probe.minY = positions[i * 2 + 1];
+                probe.width = Distribution.size(random);
+                probe.height = Distribution.size(random);
+                probeQuadTree.insert(probe);
+            }
+        }
+    }
+
+    //Positions churn moves items to, each swapped with the position the item leaves
+    @State(Scope.Benchmark)
+    public static class Moves {
+
+        private float[] positions;
+        private int index;
+
+        @Setup(Level.Trial)
+        public void setup(QuadTreeBenchmark benchmark) {
+            positions = new float[benchmark.entityCount * 2];
+            benchmark.distribution.positions(new Random(-benchmark.entityCount), positions, 2);
+        }
+
+        public int next() {
+            int next = index;
+            index = (index + 1) % (positions.length / 2);
+            return next;
+        }
+
+        public void swap(Item item, int index) {
+            float minX = positions[index * 2];
+            float minY = positions[index * 2 + 1];
+            positions[index * 2] = item.minX;
+            positions[index * 2 + 1] = item.minY;
+            item.minX = minX;
+            item.minY = minY;
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Query {
+
+        //0 is a point query
+        @Param({"0", "64", "512"})
+        public float querySize;
+
+        private final List<Item> result = new ArrayList<>();
+        private final float[] window = new float[2];
+        private final Circle circle = new Circle();
+        private float[] positions;
+        private int index;
+
+        @Setup(Level.Trial)
+        public void setup() {
+            positions = new float[QUERIES * 2];
+            Distribution.UNIFORM.positions(new Random(QUERIES), positions, 2);
+        }
+
+        public float[] next() {
+            window[0] = positions[index * 2];
+            window[1] = positions[index * 2 + 1];
+            index = (index + 1) % QUERIES;
+            return window;
+        }
+    }
+
+    public static class Item implements Leaf {
+
+        public float minX, minY, width, height, velocityX, velocityY;
+
+        public void move() {
+            minX += velocityX;
+            minY += velocityY;
+            if (minX != Distribution.clamp(minX)) {
+                minX = Distribution.clamp(minX);
+                velocityX = -velocityX;
+            }
+            if (minY != Distribution.clamp(minY)) {
+                minY = Distribution.clamp(minY);
+                velocityY = -velocityY;
+            }
+        }
+
+        @Override
+        public float getMinX() {
+            return minX;
+        }
+
+        @Override
+        public float getMinY() {
+            return minY;
+        }
+
+        @Override
+        public float getWidth() {
+            return width;
+        }
+
+        @Override
+        public float getHeight() {
+            return height;
+        }
+    }
+}
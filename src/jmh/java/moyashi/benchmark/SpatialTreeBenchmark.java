@@ -0,0 +1,293 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.benchmark;
+
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import moyashi.util.Leaf;
+import moyashi.util.OffHeapSpatialTree;
+import moyashi.util.SpatialTree;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+public class SpatialTreeBenchmark {
+
+    private static final int QUERIES = 1024, NEAREST = 8;
+
+    @Param({"1000", "10000", "100000", "1000000"})
+    public int entityCount;
+
+    @Param({"2", "3"})
+    public int dimensions;
+
+    @Param({"8", "32"})
+    public int splitThreshold;
+
+    @Param({"UNIFORM", "CLUSTERED", "MOVING"})
+    public Distribution distribution;
+
+    private Item[] items;
+    private float[] worldMinimum, worldMaximum;
+
+    @Setup(Level.Trial)
+    public void setup() {
+        Random random = new Random(entityCount);
+        float[] positions = new float[entityCount * dimensions];
+        distribution.positions(random, positions, dimensions);
+
+        items = new Item[entityCount];
+        for (int i = 0; i < entityCount; i++) {
+            Item item = items[i] = new Item(dimensions, !distribution.isMoving());
+            for (int d = 0; d < dimensions; d++) {
+                item.minimum[d] = positions[i * dimensions + d];
+                item.size[d] = Distribution.size(random);
+                if (distribution.isMoving()) {
+                    item.velocity[d] = (random.nextFloat() * 2 - 1) * Distribution.MAX_SPEED;
+                }
+            }
+        }
+
+        worldMinimum = new float[dimensions];
+        worldMaximum = new float[dimensions];
+        for (int d = 0; d < dimensions; d++) {
+            worldMaximum[d] = Distribution.WORLD_SIZE;
+        }
+    }
+
+    private SpatialTree<Item> load() {
+        SpatialTree<Item> spatialTree = new SpatialTree<>(dimensions, splitThreshold);
+        spatialTree.resize(worldMinimum, worldMaximum);
+        for (Item item : items) {
+            spatialTree.insert(item);
+        }
+        return spatialTree;
+    }
+
+    @Benchmark
+    public SpatialTree<Item> bulkLoad() {
+        return load();
+    }
+
+    //One simulation frame: move every mover then update the whole tree
+    @Benchmark
+    public SpatialTree<Item> update(Loaded loaded) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        loaded.spatialTree.update();
+        return loaded.spatialTree;
+    }
+
+    @Benchmark
+    public SpatialTree<Item> updateParallel(Loaded loaded) {
+        if (distribution.isMoving()) {
+            for (Item item : items) {
+                item.move();
+            }
+        }
+        loaded.spatialTree.updateParallel();
+        return loaded.spatialTree;
+    }
+
+    @Benchmark
+    public ArrayList<Item> search(Loaded loaded, Query query) {
+        query.next(dimensions);
+        query.result.clear();
+        loaded.spatialTree.search(query.result, query.minimum, query.maximum);
+        return query.result;
+    }
+
+    @Benchmark
+    public OffHeapSpatialTree offHeapBulkLoad(OffHeap offHeap) {
+        return offHeap.load(this);
+    }
+
+    @Benchmark
+    public int offHeapCount(OffHeap offHeap, Query query) {
+        query.next(dimensions);
+        return offHeap.offHeapTree.count(query.minimum, query.maximum);
+    }
+
+    //Descent and counting are allocation-free, gc.alloc.rate.norm should report ~0 B/op
+    @Benchmark
+    public int count(Loaded loaded, Query query) {
+        query.next(dimensions);
+        return loaded.spatialTree.count(query.minimum, query.maximum);
+    }
+
+    @Benchmark
+    public int nearest(Loaded loaded, Query query) {
+        query.next(dimensions);
+        return loaded.spatialTree.nearest(query.minimum, NEAREST, (item, distance) -> true);
+    }
+
+    //Every item along the query's diagonal
+    @Benchmark
+    public int segment(Loaded loaded, Query query) {
+        query.next(dimensions);
+        return loaded.spatialTree.segment(query.minimum, query.maximum, (item, distance) -> true);
+    }
+
+    //Removes an item and inserts it back somewhere else
+    @Benchmark
+    public SpatialTree<Item> churn(Loaded loaded, Moves moves) {
+        int index = moves.next();
+        Item item = items[index];
+        loaded.spatialTree.delete(item);
+        moves.swap(item, index);
+        loaded.spatialTree.insert(item);
+        return loaded.spatialTree;
+    }
+
+    //Each engine and feature has its own state, so a benchmark only builds what it uses
+    @State(Scope.Benchmark)
+    public static class Loaded {
+
+        private SpatialTree<Item> spatialTree;
+
+        @Setup(Level.Trial)
+        public void setup(SpatialTreeBenchmark benchmark) {
+            spatialTree = benchmark.load();
+        }
+    }
+
+    //Positions churn moves items to, each swapped with the position the item leaves
+    @State(Scope.Benchmark)
+    public static class OffHeap {
+
+        private OffHeapSpatialTree offHeapTree;
+        private float[] bufferMaximum;
+
+        @Setup(Level.Trial)
+        public void setup(SpatialTreeBenchmark benchmark) {
+            bufferMaximum = new float[benchmark.dimensions];
+            offHeapTree = load(benchmark);
+        }
+
+        //Items are their index in items
+        public OffHeapSpatialTree load(SpatialTreeBenchmark benchmark) {
+            OffHeapSpatialTree offHeapTree = new OffHeapSpatialTree(benchmark.dimensions, benchmark.splitThreshold, benchmark.worldMinimum, benchmark.worldMaximum);
+            offHeapTree.ensureCapacity(benchmark.entityCount);
+            for (int i = 0; i < benchmark.entityCount; i++) {
+                Item item = benchmark.items[i];
+                item.getMaximum(bufferMaximum);
+                offHeapTree.insert(i, item.minimum, bufferMaximum);
+            }
+            return offHeapTree;
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Moves {
+
+        private float[] positions;
+        private int dimensions, index;
+
+        @Setup(Level.Trial)
+        public void setup(SpatialTreeBenchmark benchmark) {
+            dimensions = benchmark.dimensions;
+            positions = new float[benchmark.entityCount * dimensions];
+            benchmark.distribution.positions(new Random(-benchmark.entityCount), positions, dimensions);
+        }
+
+        public int next() {
+            int next = index;
+            index = (index + 1) % (positions.length / dimensions);
+            return next;
+        }
+
+        public void swap(Item item, int index) {
+            for (int d = 0; d < dimensions; d++) {
+                float value = positions[index * dimensions + d];
+                positions[index * dimensions + d] = item.minimum[d];
+                item.minimum[d] = value;
+            }
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Query {
+
+        //0 is a point query
+        @Param({"0", "64", "512"})
+        public float querySize;
+
+        private final ArrayList<Item> result = new ArrayList<>();
+        private float[] positions, minimum, maximum;
+        private int index;
+
+        public void next(int dimensions) {
+            if (positions == null) {
+                positions = new float[QUERIES * dimensions];
+                Distribution.UNIFORM.positions(new Random(QUERIES), positions, dimensions);
+                minimum = new float[dimensions];
+                maximum = new float[dimensions];
+            }
+            for (int d = 0; d < dimensions; d++) {
+                minimum[d] = positions[index * dimensions + d];
+                maximum[d] = minimum[d] + querySize;
+            }
+            index = (index + 1) % QUERIES;
+        }
+    }
+
+    public static class Item implements Leaf {
+
+        public final float[] minimum, size, velocity;
+        private final boolean fixed;
+
+        public Item(int dimensions, boolean fixed) {
+            this.fixed = fixed;
+            minimum = new float[dimensions];
+            size = new float[dimensions];
+            velocity = new float[dimensions];
+        }
+
+        public void move() {
+            for (int d = 0; d < minimum.length; d++) {
+                minimum[d] += velocity[d];
+                if (minimum[d] != Distribution.clamp(minimum[d])) {
+                    minimum[d] = Distribution.clamp(minimum[d]);
+                    velocity[d] = -velocity[d];
+                }
+            }
+        }
+
+        @Override
+        public void getMinimum(float[] minimum) {
+            System.arraycopy(this.minimum, 0, minimum, 0, minimum.length);
+        }
+
+        @Override
+        public void getMaximum(float[] maximum) {
+            for (int d = 0; d < maximum.length; d++) {
+                maximum[d] = minimum[d] + size[d];
+            }
+        }
+
+        @Override
+        public boolean isStatic() {
+            return fixed;
+        }
+    }
+}
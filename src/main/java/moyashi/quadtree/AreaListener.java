@@ -0,0 +1,23 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+/**
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+public interface AreaListener<T extends Leaf> {
+
+    //The item now overlaps the subscribed area, either it moved in, was added, or the area moved onto it.
+    public void enter(int subscription, T item);
+
+    //The item no longer overlaps the area, including when it is removed.
+    public void leave(int subscription, T item);
+
+    //The item changed bounds and still overlaps the area.
+    public void move(int subscription, T item);
+}
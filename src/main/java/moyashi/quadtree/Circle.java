@@ -0,0 +1,47 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+/**
+ * Touching counts as intersecting.
+ *
+ * @author Low Teck Wei
+ */
+public class Circle implements ShapeQuery {
+
+    public float x, y, radius;
+
+    public Circle() {
+
+    }
+
+    public Circle(float x, float y, float radius) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
+    public void set(float x, float y, float radius) {
+        this.x = x;
+        this.y = y;
+        this.radius = radius;
+    }
+
+    @Override
+    public boolean intersects(float minX, float minY, float width, float height) {
+        float dx = Math.max(Math.max(minX - x, x - (minX + width)), 0);
+        float dy = Math.max(Math.max(minY - y, y - (minY + height)), 0);
+        return dx * dx + dy * dy <= radius * radius;
+    }
+
+    //The farthest corner is inside
+    @Override
+    public boolean contains(float minX, float minY, float width, float height) {
+        float dx = Math.max(x - minX, minX + width - x);
+        float dy = Math.max(y - minY, minY + height - y);
+        return dx * dx + dy * dy <= radius * radius;
+    }
+}
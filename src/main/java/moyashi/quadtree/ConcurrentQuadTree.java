@@ -0,0 +1,206 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Thread-safe {@link QuadTree} for many writers. The world is cut into a grid of partitions, each its own QuadTree
+ * behind its own lock. An item no larger than a cell belongs to the partition holding its min corner, clamped to the
+ * grid, so writers in disjoint regions never contend, including for items crossing a partition edge. Larger items go
+ * to one overflow partition covering the world, which searches only lock while it holds anything.
+ * <p>
+ * A search holds the lock of every partition it may find items in, taken in index order, until it returns. It
+ * therefore sees a concurrent move either before or after it happened, never the item missing or twice. The consumer
+ * must not write to this tree.
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+public class ConcurrentQuadTree<T extends Leaf> {
+
+    private final float minX, minY, cellWidth, cellHeight;
+    private final int partitionsPerAxis;
+    //Grid cells row by row, then overflow. Locks are always taken in this order
+    private final List<Partition<T>> partitions;
+    private final Partition<T> overflow;
+    //An item's owner only changes while that owner's lock is held
+    private final ConcurrentHashMap<T, Partition<T>> owners = new ConcurrentHashMap<>();
+
+    public ConcurrentQuadTree(int nodeCapacity, int partitionsPerAxis, float minX, float minY, float width, float height) {
+        this.minX = minX;
+        this.minY = minY;
+        this.partitionsPerAxis = partitionsPerAxis;
+        cellWidth = width / partitionsPerAxis;
+        cellHeight = height / partitionsPerAxis;
+
+        partitions = new ArrayList<>(partitionsPerAxis * partitionsPerAxis + 1);
+        for (int y = 0; y < partitionsPerAxis; y++) {
+            for (int x = 0; x < partitionsPerAxis; x++) {
+                partitions.add(new Partition<>(partitions.size(), new QuadTree<>(nodeCapacity, minX + x * cellWidth, minY + y * cellHeight, cellWidth, cellHeight)));
+            }
+        }
+        overflow = new Partition<>(partitions.size(), new QuadTree<>(nodeCapacity, minX, minY, width, height));
+        partitions.add(overflow);
+    }
+
+    //Also functions as an update. The item's bounds must not change while its own insert runs.
+    public void insert(T leaf) {
+        Partition<T> target = partitionOf(leaf);
+        while (true) {
+            Partition<T> current = owners.get(leaf);
+            if (current == null || current == target) {
+                target.lock.lock();
+                try {
+                    if (current == null ? owners.putIfAbsent(leaf, target) == null : owners.get(leaf) == target) {
+                        target.quadTree.insert(leaf);
+                        if (current == null) {
+                            target.size++;
+                        }
+                        return;
+                    }
+                } finally {
+                    target.lock.unlock();
+                }
+            } else {
+                Partition<T> first = current.index < target.index ? current : target;
+                Partition<T> second = first == current ? target : current;
+                first.lock.lock();
+                second.lock.lock();
+                try {
+                    if (owners.replace(leaf, current, target)) {
+                        current.quadTree.remove(leaf);
+                        current.size--;
+                        target.quadTree.insert(leaf);
+                        target.size++;
+                        return;
+                    }
+                } finally {
+                    second.lock.unlock();
+                    first.lock.unlock();
+                }
+            }
+            //Another writer moved or removed the item in between, look again
+        }
+    }
+
+    public void remove(T leaf) {
+        while (true) {
+            Partition<T> current = owners.get(leaf);
+            if (current == null) {
+                return;
+            }
+            current.lock.lock();
+            try {
+                if (owners.remove(leaf, current)) {
+                    current.quadTree.remove(leaf);
+                    current.size--;
+                    return;
+                }
+            } finally {
+                current.lock.unlock();
+            }
+        }
+    }
+
+    //APPENDS to result
+    public List<T> search(List<T> result, float minX, float minY, float width, float height) {
+        search(result::add, minX, minY, width, height);
+        return result;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(IntersectionConsumer<T> consumer, float minX, float minY, float width, float height) {
+        //Grid items are at most a cell large and placed by their min corner, so one starting in the cell before the window can reach into it
+        int fromX = Math.max(0, cell(minX - this.minX, cellWidth) - 1), toX = cell(minX + width - this.minX, cellWidth);
+        int fromY = Math.max(0, cell(minY - this.minY, cellHeight) - 1), toY = cell(minY + height - this.minY, cellHeight);
+        lock(fromX, toX, fromY, toY);
+        //Read under the grid locks, so an item moving between a locked cell and overflow is on exactly one side
+        boolean searchOverflow = overflow.size > 0;
+        if (searchOverflow) {
+            overflow.lock.lock();
+        }
+        try {
+            for (int y = fromY; y <= toY; y++) {
+                for (int x = fromX; x <= toX; x++) {
+                    if (!partitions.get(y * partitionsPerAxis + x).quadTree.search(consumer, minX, minY, width, height)) {
+                        return false;
+                    }
+                }
+            }
+            return !searchOverflow || overflow.quadTree.search(consumer, minX, minY, width, height);
+        } finally {
+            if (searchOverflow) {
+                overflow.lock.unlock();
+            }
+            unlock(fromX, toX, fromY, toY);
+        }
+    }
+
+    public int count(float minX, float minY, float width, float height) {
+        int[] count = new int[1];
+        search(item -> {
+            count[0]++;
+            return true;
+        }, minX, minY, width, height);
+        return count[0];
+    }
+
+    //Updates all item in parallel, writers only contend when their items share a partition
+    public void refresh() {
+        owners.keySet().parallelStream().forEach(this::insert);
+    }
+
+    public int size() {
+        return owners.size();
+    }
+
+    //Row by row, increasing index
+    private void lock(int fromX, int toX, int fromY, int toY) {
+        for (int y = fromY; y <= toY; y++) {
+            for (int x = fromX; x <= toX; x++) {
+                partitions.get(y * partitionsPerAxis + x).lock.lock();
+            }
+        }
+    }
+
+    private void unlock(int fromX, int toX, int fromY, int toY) {
+        for (int y = toY; y >= fromY; y--) {
+            for (int x = toX; x >= fromX; x--) {
+                partitions.get(y * partitionsPerAxis + x).lock.unlock();
+            }
+        }
+    }
+
+    private Partition<T> partitionOf(T leaf) {
+        if (leaf.getWidth() > cellWidth || leaf.getHeight() > cellHeight) {
+            return overflow;
+        }
+        return partitions.get(cell(leaf.getMinY() - minY, cellHeight) * partitionsPerAxis + cell(leaf.getMinX() - minX, cellWidth));
+    }
+
+    //Clamped to the grid, items outside the world belong to the nearest edge partition
+    private int cell(float offset, float cellSize) {
+        return Math.max(0, Math.min(partitionsPerAxis - 1, (int) Math.floor(offset / cellSize)));
+    }
+
+    private static class Partition<T extends Leaf> {
+
+        public final int index;
+        public final QuadTree<T> quadTree;
+        public final ReentrantLock lock = new ReentrantLock();
+        //Written under lock, read without it by searches deciding whether to lock overflow
+        public volatile int size;
+
+        public Partition(int index, QuadTree<T> quadTree) {
+            this.index = index;
+            this.quadTree = quadTree;
+        }
+    }
+}
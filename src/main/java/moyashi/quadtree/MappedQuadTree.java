@@ -0,0 +1,138 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+
+/**
+ * Read-only tree served straight off a file written by {@link QuadTree#write}, without any node objects.
+ * Items are reported as the int ids they were written with. Safe for any number of reader threads,
+ * and processes mapping the same file share its pages.
+ *
+ * @author Low Teck Wei
+ */
+public class MappedQuadTree {
+
+    //Little endian ints and floats: MAGIC, VERSION, node count, item count, then each section in order:
+    //node bounds (STRIDE floats), node child, item start, item end, subtree end, item bounds (STRIDE floats), item ids
+    static final int MAGIC = 0x51545331, VERSION = 1, HEADER = 16, BYTES = 4;
+    private static final int NONE = QuadTreeSnapshot.NONE, LAYER_SIZE = QuadTreeSnapshot.LAYER_SIZE, ROOT = 0;
+    private static final int MIN_X = QuadTreeSnapshot.MIN_X, MIN_Y = QuadTreeSnapshot.MIN_Y;
+    private static final int MAX_X = QuadTreeSnapshot.MAX_X, MAX_Y = QuadTreeSnapshot.MAX_Y;
+    private static final int STRIDE = QuadTreeSnapshot.STRIDE;
+
+    private final ByteBuffer buffer;
+    private final int nodeCount, itemCount;
+    //Byte offsets of each section
+    private final int nodeBounds, nodeChild, nodeItemStart, nodeItemEnd, nodeSubtreeEnd, itemBounds, itemIds;
+
+    public MappedQuadTree(ByteBuffer buffer) {
+        this.buffer = buffer.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        if (this.buffer.getInt(0) != MAGIC || this.buffer.getInt(BYTES) != VERSION) {
+            throw new IllegalArgumentException("Not a quadtree file");
+        }
+        nodeCount = this.buffer.getInt(BYTES * 2);
+        itemCount = this.buffer.getInt(BYTES * 3);
+        //In long, so that corrupt counts cannot wrap around into a size that passes
+        if (nodeCount < 0 || itemCount < 0 || this.buffer.capacity() < size(nodeCount, itemCount)) {
+            throw new IllegalArgumentException("Truncated quadtree file");
+        }
+
+        nodeBounds = HEADER;
+        nodeChild = nodeBounds + nodeCount * STRIDE * BYTES;
+        nodeItemStart = nodeChild + nodeCount * BYTES;
+        nodeItemEnd = nodeItemStart + nodeCount * BYTES;
+        nodeSubtreeEnd = nodeItemEnd + nodeCount * BYTES;
+        itemBounds = nodeSubtreeEnd + nodeCount * BYTES;
+        itemIds = itemBounds + itemCount * STRIDE * BYTES;
+    }
+
+    //Bytes a file with these counts takes
+    static long size(int nodeCount, int itemCount) {
+        return HEADER + ((long) nodeCount * (STRIDE + 4) + (long) itemCount * (STRIDE + 1)) * BYTES;
+    }
+
+    //Maps the whole file read-only, the mapping stays valid after the channel is closed
+    public static MappedQuadTree open(Path path) throws IOException {
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Quadtree file of " + channel.size() + " bytes is too large to map");
+            }
+            return new MappedQuadTree(channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        }
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(HandleConsumer consumer, float minX, float minY, float width, float height) {
+        return nodeCount == 0 || search(ROOT, consumer, minX, minY, minX + width, minY + height);
+    }
+
+    public int count(float minX, float minY, float width, float height) {
+        int[] count = new int[1];
+        search(handle -> {
+            count[0]++;
+            return true;
+        }, minX, minY, width, height);
+        return count[0];
+    }
+
+    public boolean anyIntersects(float minX, float minY, float width, float height) {
+        return !search(handle -> false, minX, minY, width, height);
+    }
+
+    public int size() {
+        return itemCount;
+    }
+
+    private boolean search(int node, HandleConsumer consumer, float minX, float minY, float maxX, float maxY) {
+        int end = buffer.getInt(nodeItemEnd + node * BYTES);
+        for (int i = buffer.getInt(nodeItemStart + node * BYTES); i < end; i++) {
+            int offset = itemBounds + i * STRIDE * BYTES;
+            if (minX < buffer.getFloat(offset + MAX_X * BYTES)
+                    && maxX > buffer.getFloat(offset + MIN_X * BYTES)
+                    && minY < buffer.getFloat(offset + MAX_Y * BYTES)
+                    && maxY > buffer.getFloat(offset + MIN_Y * BYTES)
+                    && !consumer.accept(buffer.getInt(itemIds + i * BYTES))) {
+                return false;
+            }
+        }
+
+        int child = buffer.getInt(nodeChild + node * BYTES);
+        if (child != NONE) {
+            for (int i = child; i < child + LAYER_SIZE; i++) {
+                //Below the root every item lies inside its node's bounds
+                int offset = nodeBounds + i * STRIDE * BYTES;
+                int start = buffer.getInt(nodeItemStart + i * BYTES), subtreeEnd = buffer.getInt(nodeSubtreeEnd + i * BYTES);
+                if (start == subtreeEnd
+                        || minX >= buffer.getFloat(offset + MAX_X * BYTES)
+                        || maxX <= buffer.getFloat(offset + MIN_X * BYTES)
+                        || minY >= buffer.getFloat(offset + MAX_Y * BYTES)
+                        || maxY <= buffer.getFloat(offset + MIN_Y * BYTES)) {
+                    continue;
+                }
+                if (minX < buffer.getFloat(offset + MIN_X * BYTES)
+                        && maxX > buffer.getFloat(offset + MAX_X * BYTES)
+                        && minY < buffer.getFloat(offset + MIN_Y * BYTES)
+                        && maxY > buffer.getFloat(offset + MAX_Y * BYTES)) {
+                    //Inside the window, the whole subtree is one range of ids reported without tests
+                    for (int j = start; j < subtreeEnd; j++) {
+                        if (!consumer.accept(buffer.getInt(itemIds + j * BYTES))) {
+                            return false;
+                        }
+                    }
+                } else if (!search(i, consumer, minX, minY, maxX, maxY)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,476 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Covers the insert, remove and window search part of {@link QuadTree}, but nodes and leafs are int ids into flat
+ * primitive arrays instead of objects. Every node keeps a packed copy of its items' bounds so searches scan contiguous
+ * memory.
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+//This class is not thread-safe, no snapshots done
+public class PackedQuadTree<T extends Leaf> {
+
+    private static final int SELF = -1, NONE = -1, NE = 0, NW = 1, SE = 2, SW = 3;
+    private static final int LAYER_SIZE = 4, REINSERT_THRESHOLD = 3, ROOT = 0, ROOT_DEPTH = 0;
+    //Bounds are stored as minX, minY, maxX, maxY
+    private static final int MIN_X = 0, MIN_Y = 1, MAX_X = 2, MAX_Y = 3, STRIDE = 4;
+    private static final int INITIAL_CAPACITY = 64;
+
+    private final int nodeCapacity, mergeThreshold;
+
+    //Node storage, children of a node are always LAYER_SIZE consecutive ids starting at nodeChild
+    private float[] nodeBounds = new float[INITIAL_CAPACITY * STRIDE];
+    private int[] nodeParent = new int[INITIAL_CAPACITY];
+    private int[] nodeChild = new int[INITIAL_CAPACITY];
+    private int[] nodeDepth = new int[INITIAL_CAPACITY];
+    private int[] nodeSize = new int[INITIAL_CAPACITY];
+    private int[] nodeLeafCount = new int[INITIAL_CAPACITY];
+    private int[][] nodeLeafs = new int[INITIAL_CAPACITY][];
+    private float[][] nodeLeafBounds = new float[INITIAL_CAPACITY][];
+    private int nodeCount;
+    //First ids of LAYER_SIZE blocks freed by merges, reused before nodeCount grows
+    private int[] freeNodes = new int[INITIAL_CAPACITY];
+    private int freeNodeCount;
+
+    //Leaf storage
+    private float[] leafBounds = new float[INITIAL_CAPACITY * STRIDE];
+    private int[] leafNode = new int[INITIAL_CAPACITY];
+    private int[] leafSlot = new int[INITIAL_CAPACITY];
+    private Object[] leafItems = new Object[INITIAL_CAPACITY];
+    private int leafCount;
+    private int[] freeLeafs = new int[INITIAL_CAPACITY];
+    private int freeLeafCount;
+    private final Map<T, Integer> leafMap = new HashMap<>();
+
+    private final Rectangle bufferRectangle = new Rectangle();
+    private final List<T> bufferItems = new ArrayList<>();
+    private final float[] bufferBounds = new float[STRIDE];
+    private final SearchCollector<T> bufferCollector = new SearchCollector<>();
+
+    public PackedQuadTree(int nodeCapacity, float minX, float minY, float width, float height) {
+        this.nodeCapacity = nodeCapacity;
+        //Same default as QuadTree, split nodes collapse back once their subtree holds this many items or fewer
+        this.mergeThreshold = nodeCapacity / 2;
+        initRoot(minX, minY, width, height);
+    }
+
+    //Also functions as an update
+    public void insert(T leaf) {
+        int leafId = getLeafId(leaf);
+        int node = leafNode[leafId];
+
+        //If leaf already exists, check if need to reinsert.
+        if (node != NONE) {
+
+            //If within, don't need to insert from root
+            if (nodeDepth[node] > REINSERT_THRESHOLD && contains(nodeBounds, node * STRIDE, leafBounds, leafId * STRIDE)) {
+                if (nodeChild[node] != NONE) {
+                    int index = indexOf(node, leafBounds, leafId * STRIDE);
+                    if (index != SELF) {
+                        removeFromNode(leafId);
+                        insert(nodeChild[node] + index, leafId);
+                        return;
+                    }
+                }
+                System.arraycopy(leafBounds, leafId * STRIDE, nodeLeafBounds[node], leafSlot[leafId] * STRIDE, STRIDE);
+                return;
+            }
+
+            //Remove and update size
+            removeLeaf(leafId);
+        }
+
+        insert(ROOT, leafId);
+    }
+
+    public void remove(T leaf) {
+        Integer leafId = leafMap.remove(leaf);
+        if (leafId != null) {
+            removeLeaf(leafId);
+            leafItems[leafId] = null;
+            freeLeafs = push(freeLeafs, freeLeafCount++, leafId);
+        }
+    }
+
+    //APPENDS to result
+    public List<T> search(List<T> result, float minX, float minY, float width, float height) {
+        bufferCollector.result = result;
+        search(bufferCollector, minX, minY, width, height);
+        bufferCollector.result = null;
+        return result;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(IntersectionConsumer<T> consumer, float minX, float minY, float width, float height) {
+        float[] target = bufferBounds;
+        target[MIN_X] = minX;
+        target[MIN_Y] = minY;
+        target[MAX_X] = minX + width;
+        target[MAX_Y] = minY + height;
+
+        int node = ROOT;
+        while (node != NONE) {
+            int childIndex = indexOf(node, target, 0);
+            if (childIndex == SELF) {
+                break;
+            }
+            if (!collectSelf(node, consumer, target)) {
+                return false;
+            }
+            if (nodeChild[node] == NONE || nodeSize[node = nodeChild[node] + childIndex] <= 0) {
+                node = NONE;
+            }
+        }
+
+        return node == NONE || collectAll(node, consumer, target);
+    }
+
+    public int count(float minX, float minY, float width, float height) {
+        bufferCollector.count = 0;
+        search(bufferCollector, minX, minY, width, height);
+        return bufferCollector.count;
+    }
+
+    public boolean anyIntersects(float minX, float minY, float width, float height) {
+        return !search(SearchCollector.stop(), minX, minY, width, height);
+    }
+
+    //Visits all nodes and items using depth first search.
+    public void traverse(QuadTreeVisitor<T> visitor) {
+        traverse(ROOT, visitor);
+    }
+
+    //Resets everything, leaving only an empty root node
+    public void clear() {
+        float minX = nodeBounds[MIN_X];
+        float minY = nodeBounds[MIN_Y];
+        float width = nodeBounds[MAX_X] - minX;
+        float height = nodeBounds[MAX_Y] - minY;
+
+        Arrays.fill(leafItems, 0, leafCount, null);
+        leafCount = 0;
+        freeLeafCount = 0;
+        leafMap.clear();
+        initRoot(minX, minY, width, height);
+    }
+
+    //Creates new root node, reinserts all items.
+    public void resize(float minX, float minY, float width, float height) {
+        initRoot(minX, minY, width, height);
+        for (Integer leafId : leafMap.values()) {
+            leafNode[leafId] = NONE;
+        }
+        leafMap.keySet().forEach(this::insert);
+    }
+
+    //Updates all item
+    public void refresh() {
+        leafMap.keySet().forEach(this::insert);
+    }
+
+    public float size() {
+        return nodeSize[ROOT];
+    }
+
+    private void initRoot(float minX, float minY, float width, float height) {
+        nodeCount = 0;
+        freeNodeCount = 0;
+        int root = obtainNodes(1);
+        setNode(root, NONE, ROOT_DEPTH, minX, minY, minX + width, minY + height);
+    }
+
+    private int getLeafId(T leaf) {
+        Integer leafId = leafMap.get(leaf);
+        int id;
+        if (leafId == null) {
+            id = obtainLeaf();
+            leafItems[id] = leaf;
+            leafNode[id] = NONE;
+            leafMap.put(leaf, id);
+        } else {
+            id = leafId;
+        }
+
+        int offset = id * STRIDE;
+        leafBounds[offset + MIN_X] = leaf.getMinX();
+        leafBounds[offset + MIN_Y] = leaf.getMinY();
+        leafBounds[offset + MAX_X] = leafBounds[offset + MIN_X] + leaf.getWidth();
+        leafBounds[offset + MAX_Y] = leafBounds[offset + MIN_Y] + leaf.getHeight();
+        return id;
+    }
+
+    private int obtainLeaf() {
+        if (freeLeafCount > 0) {
+            return freeLeafs[--freeLeafCount];
+        }
+
+        int id = leafCount++;
+        if (id == leafNode.length) {
+            int capacity = id * 2;
+            leafBounds = Arrays.copyOf(leafBounds, capacity * STRIDE);
+            leafNode = Arrays.copyOf(leafNode, capacity);
+            leafSlot = Arrays.copyOf(leafSlot, capacity);
+            leafItems = Arrays.copyOf(leafItems, capacity);
+        }
+        return id;
+    }
+
+    //Returns the first of count consecutive node ids
+    private int obtainNodes(int count) {
+        if (count == LAYER_SIZE && freeNodeCount > 0) {
+            return freeNodes[--freeNodeCount];
+        }
+
+        int id = nodeCount;
+        nodeCount += count;
+        if (nodeCount > nodeParent.length) {
+            int capacity = Math.max(nodeCount, nodeParent.length * 2);
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * STRIDE);
+            nodeParent = Arrays.copyOf(nodeParent, capacity);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeDepth = Arrays.copyOf(nodeDepth, capacity);
+            nodeSize = Arrays.copyOf(nodeSize, capacity);
+            nodeLeafCount = Arrays.copyOf(nodeLeafCount, capacity);
+            nodeLeafs = Arrays.copyOf(nodeLeafs, capacity);
+            nodeLeafBounds = Arrays.copyOf(nodeLeafBounds, capacity);
+        }
+        return id;
+    }
+
+    private void setNode(int node, int parent, int depth, float minX, float minY, float maxX, float maxY) {
+        int offset = node * STRIDE;
+        nodeBounds[offset + MIN_X] = minX;
+        nodeBounds[offset + MIN_Y] = minY;
+        nodeBounds[offset + MAX_X] = maxX;
+        nodeBounds[offset + MAX_Y] = maxY;
+        nodeParent[node] = parent;
+        nodeChild[node] = NONE;
+        nodeDepth[node] = depth;
+        nodeSize[node] = 0;
+        nodeLeafCount[node] = 0;
+    }
+
+    private void insert(int node, int leafId) {
+        int offset = leafId * STRIDE;
+        while (nodeChild[node] != NONE) {
+            int childIndex = indexOf(node, leafBounds, offset);
+            if (childIndex == SELF) {
+                break;
+            }
+            nodeSize[node]++;
+            node = nodeChild[node] + childIndex;
+        }
+
+        nodeSize[node]++;
+        addToNode(node, leafId);
+
+        if (nodeChild[node] == NONE && nodeLeafCount[node] > nodeCapacity) {
+            split(node);
+            int[] leafs = nodeLeafs[node];
+            for (int slot = nodeLeafCount[node] - 1; slot >= 0; slot--) {
+                int t = leafs[slot];
+                int childIndex = indexOf(node, leafBounds, t * STRIDE);
+                if (childIndex != SELF) {
+                    removeFromNode(t);
+                    insert(nodeChild[node] + childIndex, t);
+                }
+            }
+        }
+    }
+
+    private void addToNode(int node, int leafId) {
+        int slot = nodeLeafCount[node]++;
+        int[] leafs = nodeLeafs[node];
+        if (leafs == null || slot == leafs.length) {
+            int capacity = leafs == null ? nodeCapacity + 1 : leafs.length * 2;
+            nodeLeafs[node] = leafs = leafs == null ? new int[capacity] : Arrays.copyOf(leafs, capacity);
+            nodeLeafBounds[node] = nodeLeafBounds[node] == null ? new float[capacity * STRIDE] : Arrays.copyOf(nodeLeafBounds[node], capacity * STRIDE);
+        }
+        leafs[slot] = leafId;
+        System.arraycopy(leafBounds, leafId * STRIDE, nodeLeafBounds[node], slot * STRIDE, STRIDE);
+        leafNode[leafId] = node;
+        leafSlot[leafId] = slot;
+    }
+
+    //Detaches the leaf, updates sizes and collapses the highest ancestor that fell to mergeThreshold
+    private void removeLeaf(int leafId) {
+        int node = leafNode[leafId];
+        int mergeNode = NONE;
+        removeFromNode(leafId);
+        do {
+            nodeSize[node]--;
+            if (nodeChild[node] != NONE && nodeSize[node] <= mergeThreshold) {
+                mergeNode = node;
+            }
+            node = nodeParent[node];
+        } while (node != NONE);
+
+        if (mergeNode != NONE) {
+            merge(mergeNode, mergeNode);
+        }
+    }
+
+    //Pulls every leaf below node into target and frees the child blocks
+    private void merge(int node, int target) {
+        int child = nodeChild[node];
+        nodeChild[node] = NONE;
+        for (int i = child; i < child + LAYER_SIZE; i++) {
+            int[] leafs = nodeLeafs[i];
+            for (int slot = 0; slot < nodeLeafCount[i]; slot++) {
+                addToNode(target, leafs[slot]);
+            }
+            nodeLeafCount[i] = 0;
+            if (nodeChild[i] != NONE) {
+                merge(i, target);
+            }
+        }
+        freeNodes = push(freeNodes, freeNodeCount++, child);
+    }
+
+    //Swap-removes the leaf from its node, sizes are left to the caller
+    private void removeFromNode(int leafId) {
+        int node = leafNode[leafId];
+        int slot = leafSlot[leafId];
+        int last = --nodeLeafCount[node];
+        if (slot != last) {
+            int moved = nodeLeafs[node][last];
+            nodeLeafs[node][slot] = moved;
+            System.arraycopy(nodeLeafBounds[node], last * STRIDE, nodeLeafBounds[node], slot * STRIDE, STRIDE);
+            leafSlot[moved] = slot;
+        }
+        leafNode[leafId] = NONE;
+    }
+
+    private void split(int node) {
+        int offset = node * STRIDE;
+        float minX = nodeBounds[offset + MIN_X];
+        float minY = nodeBounds[offset + MIN_Y];
+        float maxX = nodeBounds[offset + MAX_X];
+        float maxY = nodeBounds[offset + MAX_Y];
+        float midX = minX + (maxX - minX) / 2;
+        float midY = minY + (maxY - minY) / 2;
+        int depth = nodeDepth[node] + 1;
+
+        int child = obtainNodes(LAYER_SIZE);
+        setNode(child + NE, node, depth, midX, midY, maxX, maxY);
+        setNode(child + NW, node, depth, minX, midY, midX, maxY);
+        setNode(child + SE, node, depth, midX, minY, maxX, midY);
+        setNode(child + SW, node, depth, minX, minY, midX, midY);
+        nodeChild[node] = child;
+    }
+
+    private int indexOf(int node, float[] aabb, int aabbOffset) {
+        int offset = node * STRIDE;
+        if (contains(nodeBounds, offset, aabb, aabbOffset)) {
+            float midX = nodeBounds[offset + MIN_X] + (nodeBounds[offset + MAX_X] - nodeBounds[offset + MIN_X]) / 2;
+            float midY = nodeBounds[offset + MIN_Y] + (nodeBounds[offset + MAX_Y] - nodeBounds[offset + MIN_Y]) / 2;
+            boolean east = aabb[aabbOffset + MIN_X] > midX;
+            boolean west = aabb[aabbOffset + MAX_X] < midX;
+            boolean north = aabb[aabbOffset + MIN_Y] > midY;
+            boolean south = aabb[aabbOffset + MAX_Y] < midY;
+            if (north) {
+                if (east) {
+                    return NE;
+                } else if (west) {
+                    return NW;
+                }
+            } else if (south) {
+                if (east) {
+                    return SE;
+                } else if (west) {
+                    return SW;
+                }
+            }
+        }
+        return SELF;
+    }
+
+    private boolean collectSelf(int node, IntersectionConsumer<T> consumer, float[] aabb) {
+        int count = nodeLeafCount[node];
+        if (count > 0) {
+            int[] leafs = nodeLeafs[node];
+            float[] bounds = nodeLeafBounds[node];
+            float minX = aabb[MIN_X], minY = aabb[MIN_Y], maxX = aabb[MAX_X], maxY = aabb[MAX_Y];
+            for (int slot = 0, offset = 0; slot < count; slot++, offset += STRIDE) {
+                if (minX < bounds[offset + MAX_X]
+                        && maxX > bounds[offset + MIN_X]
+                        && minY < bounds[offset + MAX_Y]
+                        && maxY > bounds[offset + MIN_Y]
+                        && !consumer.accept(item(leafs[slot]))) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean collectAll(int node, IntersectionConsumer<T> consumer, float[] aabb) {
+        if (nodeSize[node] > 0) {
+            if (!collectSelf(node, consumer, aabb)) {
+                return false;
+            }
+            int child = nodeChild[node];
+            if (child != NONE) {
+                for (int i = 0; i < LAYER_SIZE; i++) {
+                    if (!collectAll(child + i, consumer, aabb)) {
+                        return false;
+                    }
+                }
+            }
+        }
+        return true;
+    }
+
+    private void traverse(int node, QuadTreeVisitor<T> visitor) {
+        if (nodeSize[node] > 0) {
+            int offset = node * STRIDE;
+            bufferRectangle.set(nodeBounds[offset + MIN_X], nodeBounds[offset + MIN_Y],
+                    nodeBounds[offset + MAX_X] - nodeBounds[offset + MIN_X], nodeBounds[offset + MAX_Y] - nodeBounds[offset + MIN_Y]);
+            bufferItems.clear();
+            int[] leafs = nodeLeafs[node];
+            for (int slot = 0; slot < nodeLeafCount[node]; slot++) {
+                bufferItems.add(item(leafs[slot]));
+            }
+            visitor.visit(bufferRectangle, bufferItems);
+            bufferItems.clear();
+            int child = nodeChild[node];
+            if (child != NONE) {
+                for (int i = 0; i < LAYER_SIZE; i++) {
+                    traverse(child + i, visitor);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private T item(int leafId) {
+        return (T) leafItems[leafId];
+    }
+
+    private static boolean contains(float[] outer, int outerOffset, float[] inner, int innerOffset) {
+        return inner[innerOffset + MIN_X] > outer[outerOffset + MIN_X]
+                && inner[innerOffset + MAX_X] < outer[outerOffset + MAX_X]
+                && inner[innerOffset + MIN_Y] > outer[outerOffset + MIN_Y]
+                && inner[innerOffset + MAX_Y] < outer[outerOffset + MAX_Y];
+    }
+
+    private static int[] push(int[] stack, int size, int value) {
+        if (size == stack.length) {
+            stack = Arrays.copyOf(stack, size * 2);
+        }
+        stack[size] = value;
+        return stack;
+    }
+}
@@ -0,0 +1,18 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+/**
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ * @param <U>
+ */
+public interface PairConsumer<T extends Leaf, U extends Leaf> {
+
+    //Every overlapping pair is reported once, in no particular order.
+    public void accept(T first, U second);
+}
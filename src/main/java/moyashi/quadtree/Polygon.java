@@ -0,0 +1,93 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+/**
+ * Simple polygon, convex or not, given as x0, y0, x1, y1, ... Its edges count as inside.
+ *
+ * @author Low Teck Wei
+ */
+public class Polygon implements ShapeQuery {
+
+    private final float[] coordinates;
+    private final Rectangle bounds = new Rectangle();
+
+    public Polygon(float... coordinates) {
+        assert coordinates.length >= 6 && coordinates.length % 2 == 0;
+
+        this.coordinates = coordinates.clone();
+        float minX = Float.POSITIVE_INFINITY, minY = Float.POSITIVE_INFINITY;
+        float maxX = Float.NEGATIVE_INFINITY, maxY = Float.NEGATIVE_INFINITY;
+        for (int i = 0; i < coordinates.length; i += 2) {
+            minX = Math.min(minX, coordinates[i]);
+            minY = Math.min(minY, coordinates[i + 1]);
+            maxX = Math.max(maxX, coordinates[i]);
+            maxY = Math.max(maxY, coordinates[i + 1]);
+        }
+        bounds.set(minX, minY, maxX - minX, maxY - minY);
+    }
+
+    //An edge touches the rectangle, or the rectangle is inside. A polygon inside the rectangle has its edges touching it.
+    @Override
+    public boolean intersects(float minX, float minY, float width, float height) {
+        if (minX > bounds.minX + bounds.width || minX + width < bounds.minX
+                || minY > bounds.minY + bounds.height || minY + height < bounds.minY) {
+            return false;
+        }
+        return crossesEdge(minX, minY, width, height) || containsPoint(minX, minY);
+    }
+
+    //No edge touches the rectangle and one of its corners is inside, so all of it is
+    @Override
+    public boolean contains(float minX, float minY, float width, float height) {
+        if (minX < bounds.minX || minX + width > bounds.minX + bounds.width
+                || minY < bounds.minY || minY + height > bounds.minY + bounds.height) {
+            return false;
+        }
+        return !crossesEdge(minX, minY, width, height) && containsPoint(minX, minY);
+    }
+
+    //Even-odd rule
+    public boolean containsPoint(float x, float y) {
+        boolean inside = false;
+        for (int i = 0, j = coordinates.length - 2; i < coordinates.length; j = i, i += 2) {
+            float xi = coordinates[i], yi = coordinates[i + 1];
+            float xj = coordinates[j], yj = coordinates[j + 1];
+            if ((yi > y) != (yj > y) && x < (xj - xi) * (y - yi) / (yj - yi) + xi) {
+                inside = !inside;
+            }
+        }
+        return inside;
+    }
+
+    //Slab test of every edge against the rectangle
+    private boolean crossesEdge(float minX, float minY, float width, float height) {
+        float maxX = minX + width, maxY = minY + height;
+        for (int i = 0, j = coordinates.length - 2; i < coordinates.length; j = i, i += 2) {
+            float x = coordinates[j], y = coordinates[j + 1];
+            float directionX = coordinates[i] - x, directionY = coordinates[i + 1] - y;
+            float near = 0, far = 1;
+            if (directionX != 0) {
+                float first = (minX - x) / directionX, second = (maxX - x) / directionX;
+                near = Math.max(near, Math.min(first, second));
+                far = Math.min(far, Math.max(first, second));
+            } else if (x < minX || x > maxX) {
+                continue;
+            }
+            if (directionY != 0) {
+                float first = (minY - y) / directionY, second = (maxY - y) / directionY;
+                near = Math.max(near, Math.min(first, second));
+                far = Math.min(far, Math.max(first, second));
+            } else if (y < minY || y > maxY) {
+                continue;
+            }
+            if (near <= far) {
+                return true;
+            }
+        }
+        return false;
+    }
+}
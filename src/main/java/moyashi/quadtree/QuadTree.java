@@ -5,131 +5,1106 @@
  */
 package moyashi.quadtree;
 
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.BitSet;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashSet;
 import java.util.List;
 import java.util.Map;
+import java.util.PriorityQueue;
 import java.util.Set;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+import moyashi.util.TreeStats;
+import moyashi.util.TreeStatsSnapshot;
 
 /**
  *
  * @author Low Teck Wei
  * @param <T>
  */
-//This class is not thread-safe, no snapshots done
+//This class is not thread-safe, other threads read through publishSnapshot and acquireSnapshot
 public class QuadTree<T extends Leaf> {
 
-    private static final int SELF = -1, NE = 0, NW = 1, SE = 2, SW = 3;
+    private static final int SELF = -1, NE = 0, NW = 1, SE = 2, SW = 3, NO_HANDLE = -1;
     private static final int LAYER_SIZE = 4, REINSERT_THRESHOLD = 3, ROOT_DEPTH = 0;
+    private static final int MORTON_CELLS = 1 << 16;
+    //Most root doublings a single item may cause, anything further out stays in the root
+    private static final int MAX_GROWTH = 32;
+    //Subtrees with fewer items are not split into further fork join tasks
+    private static final int PARALLEL_THRESHOLD = 1024;
 
-    private final BitSet treeIndex = new BitSet();
-    private final List<TreeNode<T>> treePool = new ArrayList<>();
+    //Free lists, only holds released nodes
+    private final ArrayDeque<TreeNode<T>> treePool = new ArrayDeque<>();
+    private int treeNodeCount, treeNodeHighWaterMark;
 
-    private final BitSet leafIndex = new BitSet();
-    private final List<LeafNode<T>> leafPool = new ArrayList<>();
+    private final ArrayDeque<LeafNode<T>> leafPool = new ArrayDeque<>();
+    private int leafNodeCount, leafNodeHighWaterMark;
     private final Map<T, LeafNode<T>> leafMap = new HashMap<>();
+    private final List<LeafNode<T>> dirtyLeafs = new ArrayList<>();
+    //Items added through register, indexed by handle and never in leafMap
+    private LeafNode<T>[] handles = newLeafNodes(0);
+    private int handleCount;
+    private int[] freeHandles = new int[0];
+    private int freeHandleCount;
 
-    private final int nodeCapacity;
+    private final int nodeCapacity, mergeThreshold;
+    //Child bounds are grown by this factor around their centre, 1 is a regular quadtree
+    private float looseness = 1;
+    private boolean autoGrow;
+    //The bounds given to the constructor or resize, shrink never goes inside them
+    private final Rectangle extent = new Rectangle();
+    //Null unless enabled
+    private TreeStats stats;
     private TreeNode<T> root;
     private final Rectangle bufferRectangle = new Rectangle();
     private final List<T> bufferItems = new ArrayList<>();
+    private final SearchCollector<T> bufferCollector = new SearchCollector<>();
+    private final ItemConsumer<T> bufferItemConsumer = new ItemConsumer<>();
+    private final HandleLeafConsumer<T> bufferHandleConsumer = new HandleLeafConsumer<>();
+    private final PriorityQueue<NearestEntry<T>> bufferQueue = new PriorityQueue<>();
+    private final List<NearestEntry<T>> bufferEntries = new ArrayList<>();
+    private int bufferEntryCount;
+    private T bufferNearest;
+    private final List<LeafNode<T>> bufferLeafs = new ArrayList<>();
+    //Subscribed areas indexed by their own tree, registered by handle. Null until the first subscribe
+    private QuadTree<Subscription<T>> subscriptions;
+    private final Rectangle bufferPrevious = new Rectangle();
+    private final AreaNotifier<T> bufferNotifier = new AreaNotifier<>();
+    private final AreaScanner<T> bufferScanner = new AreaScanner<>();
+
+    private volatile QuadTreeSnapshot<T> snapshot;
+    private final List<QuadTreeSnapshot<T>> retiredSnapshots = new ArrayList<>();
 
     public QuadTree(int nodeCapacity, float minX, float minY, float width, float height) {
+        this(nodeCapacity, nodeCapacity / 2, minX, minY, width, height);
+    }
+
+    //Split nodes collapse back once their subtree holds mergeThreshold items or fewer
+    public QuadTree(int nodeCapacity, int mergeThreshold, float minX, float minY, float width, float height) {
+        assert mergeThreshold < nodeCapacity;
+
         this.nodeCapacity = nodeCapacity;
+        this.mergeThreshold = mergeThreshold;
+        extent.set(minX, minY, width, height);
         root = obtainTreeNodeIndex(minX, minY, width, height, ROOT_DEPTH);
     }
 
     //Also functions as an update
     public void insert(T leaf) {
-        LeafNode<T> leafNode = getLeafNode(leaf);
+        if (subscriptions == null) {
+            place(getLeafNode(leaf));
+            return;
+        }
+
+        LeafNode<T> leafNode = leafMap.get(leaf);
+        Rectangle previous = leafNode == null ? null : bufferPrevious;
+        if (previous != null) {
+            previous.set(leafNode.bounds);
+        }
+        place(leafNode = getLeafNode(leaf));
+        notifySubscriptions(leaf, previous, leafNode.bounds);
+    }
+
+    public void remove(T leaf) {
+        LeafNode<T> leafNode = leafMap.remove(leaf);
+        if (leafNode != null) {
+            if (subscriptions != null) {
+                notifySubscriptions(leaf, leafNode.bounds, null);
+            }
+            removeLeafNode(leafNode);
+            releaseLeafNode(leafNode);
+        }
+    }
+
+    //Adds an item that is then only moved through update(handle, ...), skipping the item lookup and its Leaf methods.
+    //It is still reported by the item searches. Returns the handle, reused after remove.
+    public int register(T item, float minX, float minY, float width, float height) {
+        assert item != null;
+
+        int handle;
+        if (freeHandleCount > 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            if (handleCount == handles.length) {
+                handles = Arrays.copyOf(handles, Math.max(16, handleCount * 2));
+            }
+            handle = handleCount++;
+        }
+
+        LeafNode<T> leafNode = handles[handle] = obtainLeafNode();
+        leafNode.item = item;
+        leafNode.handle = handle;
+        leafNode.bounds.set(minX, minY, width, height);
+        place(leafNode);
+        if (subscriptions != null) {
+            notifySubscriptions(item, null, leafNode.bounds);
+        }
+        return handle;
+    }
+
+    public void update(int handle, float minX, float minY, float width, float height) {
+        LeafNode<T> leafNode = handles[handle];
+        assert leafNode != null;
+
+        if (subscriptions != null) {
+            bufferPrevious.set(leafNode.bounds);
+        }
+        leafNode.bounds.set(minX, minY, width, height);
+        place(leafNode);
+        if (subscriptions != null) {
+            notifySubscriptions(leafNode.item, bufferPrevious, leafNode.bounds);
+        }
+    }
 
+    public void remove(int handle) {
+        LeafNode<T> leafNode = handles[handle];
+        assert leafNode != null;
+
+        handles[handle] = null;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeHandleCount * 2));
+        }
+        freeHandles[freeHandleCount++] = handle;
+        if (subscriptions != null) {
+            notifySubscriptions(leafNode.item, leafNode.bounds, null);
+        }
+        removeLeafNode(leafNode);
+        releaseLeafNode(leafNode);
+    }
+
+    //Reports the handles of registered items only, items added through insert are skipped
+    public boolean searchHandles(HandleConsumer consumer, float minX, float minY, float width, float height) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferRectangle.set(minX, minY, width, height);
+        bufferHandleConsumer.consumer = consumer;
+        boolean completed = root.search(bufferHandleConsumer, bufferRectangle);
+        bufferHandleConsumer.consumer = null;
+        return completed;
+    }
+
+    //Inserts or moves a leaf whose bounds are already set
+    private void place(LeafNode<T> leafNode) {
         //If leaf already exists, check if need to reinsert.
         if (leafNode.treeNode != null) {
 
             //If within, don't need to insert from root
             TreeNode<T> treeNode = leafNode.treeNode;
-            if (treeNode.depth > REINSERT_THRESHOLD && treeNode.bounds.contains(leafNode.bounds)) {
-                if (treeNode.childs != null) {
-                    int index = treeNode.indexOf(leafNode.bounds);
-                    if (index != SELF) {
-                        treeNode.leafs.remove(leafNode);
-                        treeNode.childs[index].insert(leafNode);
-                    }
+            if (treeNode.depth > REINSERT_THRESHOLD && treeNode.looseBounds.contains(leafNode.bounds)) {
+                int index = treeNode.childs == null ? SELF : treeNode.indexOf(leafNode.bounds);
+                if (index != SELF) {
+                    treeNode.removeLeaf(leafNode);
+                    treeNode.childs[index].insert(leafNode);
+                } else if (stats != null) {
+                    stats.reinsertAvoided();
                 }
                 return;
             }
 
             //Remove and update size
-            treeNode.leafs.remove(leafNode);
-            do {
-                treeNode.size--;
-                treeNode = treeNode.parent;
-            } while (treeNode != null);
+            removeLeafNode(leafNode);
         }
 
+        growToFit(leafNode.bounds);
         root.insert(leafNode);
     }
 
-    public void remove(T leaf) {
-        LeafNode<T> leafNode = leafMap.remove(leaf);
-        if (leafNode != null) {
-            TreeNode<T> treeNode = leafNode.treeNode;
-            treeNode.leafs.remove(leafNode);
-            do {
-                treeNode.size--;
-                treeNode = treeNode.parent;
-            } while (treeNode != null);
-            leafNode.item = null;
+    //APPENDS to result
+    public List<T> search(List<T> result, float minX, float minY, float width, float height) {
+        bufferCollector.result = result;
+        search(bufferCollector, minX, minY, width, height);
+        bufferCollector.result = null;
+        return result;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(IntersectionConsumer<T> consumer, float minX, float minY, float width, float height) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferRectangle.set(minX, minY, width, height);
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = root.search(bufferItemConsumer, bufferRectangle);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    //APPENDS to result
+    public List<T> searchContained(List<T> result, float minX, float minY, float width, float height) {
+        bufferCollector.result = result;
+        searchContained(bufferCollector, minX, minY, width, height);
+        bufferCollector.result = null;
+        return result;
+    }
+
+    //Reports only items lying entirely inside the window, as tested by Rectangle.contains
+    public boolean searchContained(IntersectionConsumer<T> consumer, float minX, float minY, float width, float height) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferRectangle.set(minX, minY, width, height);
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = root.collectContained(bufferItemConsumer, bufferRectangle);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    //APPENDS to result
+    public List<T> search(List<T> result, ShapeQuery shape) {
+        bufferCollector.result = result;
+        search(bufferCollector, shape);
+        bufferCollector.result = null;
+        return result;
+    }
+
+    //Reports items whose bounds the shape intersects. Nodes outside the shape are skipped, nodes inside it
+    //have their whole subtree reported without testing each item. Returns false if the consumer stopped early
+    public boolean search(IntersectionConsumer<T> consumer, ShapeQuery shape) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = root.searchShape(bufferItemConsumer, shape);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    public int count(ShapeQuery shape) {
+        bufferCollector.count = 0;
+        search(bufferCollector, shape);
+        return bufferCollector.count;
+    }
+
+    public int count(float minX, float minY, float width, float height) {
+        bufferCollector.count = 0;
+        search(bufferCollector, minX, minY, width, height);
+        return bufferCollector.count;
+    }
+
+    public boolean anyIntersects(float minX, float minY, float width, float height) {
+        return !search(SearchCollector.stop(), minX, minY, width, height);
+    }
+
+    public int nearest(float x, float y, int k, DistanceConsumer<T> consumer) {
+        return nearest(x, y, k, Float.POSITIVE_INFINITY, null, consumer);
+    }
+
+    //Reports up to k items nearest to (x, y) within maxDistance, nearest first, filter may be null.
+    //Best-first search over node and item bounds, returns the number of items reported.
+    public int nearest(float x, float y, int k, float maxDistance, Predicate<T> filter, DistanceConsumer<T> consumer) {
+        float maxDistanceSquared = maxDistance * maxDistance;
+        int reported = 0;
+        if (stats != null) {
+            stats.search();
+        }
+
+        //Root is entered unconditionally, it may hold items outside of its bounds
+        bufferQueue.add(obtainEntry(0, root, null));
+        while (reported < k && !bufferQueue.isEmpty()) {
+            NearestEntry<T> entry = bufferQueue.poll();
+            if (entry.leafNode != null) {
+                reported++;
+                if (!consumer.accept(entry.leafNode.item, (float) Math.sqrt(entry.distance))) {
+                    break;
+                }
+                continue;
+            }
+
+            TreeNode<T> treeNode = entry.treeNode;
+            if (stats != null) {
+                stats.visit(treeNode.leafCount);
+            }
+            for (int i = 0; i < treeNode.leafCount; i++) {
+                LeafNode<T> leafNode = treeNode.leafs[i];
+                float distance = leafNode.bounds.distanceSquared(x, y);
+                if (distance <= maxDistanceSquared && (filter == null || filter.test(leafNode.item))) {
+                    bufferQueue.add(obtainEntry(distance, null, leafNode));
+                }
+            }
+            if (treeNode.childs != null) {
+                for (TreeNode<T> child : treeNode.childs) {
+                    float distance = child.looseBounds.distanceSquared(x, y);
+                    if (child.size > 0 && distance <= maxDistanceSquared) {
+                        bufferQueue.add(obtainEntry(distance, child, null));
+                    }
+                }
+            }
+        }
+
+        releaseEntries();
+        return reported;
+    }
+
+    //Nearest item within maxDistance, null if there is none
+    public T nearest(float x, float y, float maxDistance) {
+        nearest(x, y, 1, maxDistance, null, (item, distance) -> {
+            bufferNearest = item;
+            return true;
+        });
+        T nearest = bufferNearest;
+        bufferNearest = null;
+        return nearest;
+    }
+
+    public int raycast(float x, float y, float directionX, float directionY, float maxDistance, DistanceConsumer<T> consumer) {
+        return raycast(x, y, directionX, directionY, maxDistance, null, consumer);
+    }
+
+    //Reports items whose bounds the ray from (x, y) crosses within maxDistance, in the order the ray enters them,
+    //with the distance it enters at, 0 for items it starts in. Nodes are visited front to back through the same queue
+    //as nearest, so stopping at the first hit only touches the nodes in front of it. Filter may be null.
+    public int raycast(float x, float y, float directionX, float directionY, float maxDistance, Predicate<T> filter, DistanceConsumer<T> consumer) {
+        float length = (float) Math.sqrt(directionX * directionX + directionY * directionY);
+        if (length > 0) {
+            directionX /= length;
+            directionY /= length;
+        }
+        int reported = 0;
+        if (stats != null) {
+            stats.search();
+        }
+
+        //Root is entered unconditionally, it may hold items outside of its bounds
+        bufferQueue.add(obtainEntry(0, root, null));
+        while (!bufferQueue.isEmpty()) {
+            NearestEntry<T> entry = bufferQueue.poll();
+            if (entry.leafNode != null) {
+                reported++;
+                if (!consumer.accept(entry.leafNode.item, entry.distance)) {
+                    break;
+                }
+                continue;
+            }
+
+            TreeNode<T> treeNode = entry.treeNode;
+            if (stats != null) {
+                stats.visit(treeNode.leafCount);
+            }
+            for (int i = 0; i < treeNode.leafCount; i++) {
+                LeafNode<T> leafNode = treeNode.leafs[i];
+                float distance = leafNode.bounds.rayDistance(x, y, directionX, directionY, maxDistance);
+                if (distance >= 0 && (filter == null || filter.test(leafNode.item))) {
+                    bufferQueue.add(obtainEntry(distance, null, leafNode));
+                }
+            }
+            if (treeNode.childs != null) {
+                for (TreeNode<T> child : treeNode.childs) {
+                    float distance = child.looseBounds.rayDistance(x, y, directionX, directionY, maxDistance);
+                    if (child.size > 0 && distance >= 0) {
+                        bufferQueue.add(obtainEntry(distance, child, null));
+                    }
+                }
+            }
+        }
+
+        releaseEntries();
+        return reported;
+    }
+
+    //First item the ray hits within maxDistance, null if there is none
+    public T raycast(float x, float y, float directionX, float directionY, float maxDistance) {
+        raycast(x, y, directionX, directionY, maxDistance, null, (item, distance) -> {
+            bufferNearest = item;
+            return false;
+        });
+        T hit = bufferNearest;
+        bufferNearest = null;
+        return hit;
+    }
+
+    //Raycast from (fromX, fromY) that ends at (toX, toY)
+    public int segment(float fromX, float fromY, float toX, float toY, DistanceConsumer<T> consumer) {
+        float directionX = toX - fromX, directionY = toY - fromY;
+        float length = (float) Math.sqrt(directionX * directionX + directionY * directionY);
+        return raycast(fromX, fromY, directionX, directionY, length, null, consumer);
+    }
+
+    //Reports every pair of items whose bounds overlap, walking the tree once.
+    public void forEachOverlappingPair(PairConsumer<T, T> consumer) {
+        root.forEachPair(consumer, bufferLeafs, 0);
+        bufferLeafs.clear();
+    }
+
+    //Same as forEachOverlappingPair with subtrees split across the ForkJoin common pool, consumer must be thread-safe.
+    //The tree must not be modified while this runs.
+    public void forEachOverlappingPairParallel(PairConsumer<T, T> consumer) {
+        ForkJoinPool.commonPool().invoke(new PairTask<>(root, consumer, new ArrayList<>()));
+    }
+
+    //Reports every pair of an item of this tree and an overlapping item of other, descending both trees together.
+    //Node pairs whose bounds do not overlap are skipped.
+    public <U extends Leaf> void join(QuadTree<U> other, PairConsumer<T, U> consumer) {
+        root.join(other.root, consumer);
+    }
+
+    //Same as join with node pairs split across the ForkJoin common pool, consumer must be thread-safe.
+    //Neither tree may be modified while this runs.
+    public <U extends Leaf> void joinParallel(QuadTree<U> other, PairConsumer<T, U> consumer) {
+        ForkJoinPool.commonPool().invoke(new JoinTask<>(root, other.root, consumer));
+    }
+
+    //Visits all nodes and items using depth first search.
+    public void traverse(QuadTreeVisitor<T> renderer) {
+        root.traverse(renderer);
+    }
+
+    //Standing query, listener is told whenever an item enters, leaves or moves within the area.
+    //Items already in the area are reported as entering right away. Returns the subscription handle.
+    //Listeners must not modify the tree. refreshParallel falls back to refresh while subscriptions exist.
+    public int subscribe(float minX, float minY, float width, float height, AreaListener<T> listener) {
+        if (subscriptions == null) {
+            subscriptions = new QuadTree<>(nodeCapacity, mergeThreshold, root.bounds.minX, root.bounds.minY, root.bounds.width, root.bounds.height);
+        }
+
+        Subscription<T> subscription = new Subscription<>();
+        subscription.listener = listener;
+        subscription.area.set(minX, minY, width, height);
+        subscription.handle = subscriptions.register(subscription, minX, minY, width, height);
+        scanArea(subscription, null, subscription.area);
+        return subscription.handle;
+    }
+
+    //Items the area moves onto enter, those it leaves behind leave
+    public void moveSubscription(int subscription, float minX, float minY, float width, float height) {
+        //Nothing was ever subscribed
+        if (subscriptions == null) {
+            return;
+        }
+        Subscription<T> moved = subscriptions.handles[subscription].item;
+        bufferPrevious.set(moved.area);
+        moved.area.set(minX, minY, width, height);
+        subscriptions.update(subscription, minX, minY, width, height);
+        scanArea(moved, bufferPrevious, moved.area);
+    }
+
+    //No leave events are reported for the items still in the area
+    public void unsubscribe(int subscription) {
+        if (subscriptions != null) {
+            subscriptions.remove(subscription);
+        }
+    }
+
+    //Resets everything, leaving only an empty root node. Every subscription sees its items leave
+    public void clear() {
+        if (subscriptions != null) {
+            for (int i = 0; i < subscriptions.handleCount; i++) {
+                LeafNode<Subscription<T>> subscription = subscriptions.handles[i];
+                if (subscription != null) {
+                    scanArea(subscription.item, subscription.item.area, null);
+                }
+            }
+        }
+        clearItems();
+        for (int i = 0; i < handleCount; i++) {
+            if (handles[i] != null) {
+                releaseLeafNode(handles[i]);
+                handles[i] = null;
+            }
+        }
+        handleCount = 0;
+        freeHandleCount = 0;
+    }
+
+    //Creates new root node, reinserts all items.
+    public void resize(float minX, float minY, float width, float height) {
+        extent.set(minX, minY, width, height);
+        rebuild(minX, minY, width, height);
+    }
+
+    private void rebuild(float minX, float minY, float width, float height) {
+        releaseTreeNodes(root);
+        root = obtainTreeNodeIndex(minX, minY, width, height, ROOT_DEPTH);
+        for (LeafNode<T> leafNode : leafMap.values()) {
             leafNode.treeNode = null;
-            leafIndex.clear(leafNode.index);
         }
+        leafMap.keySet().forEach(this::insert);
+        insertHandles();
+    }
+
+    //Items are pushed to the deepest node whose bounds, grown by looseness, contain them. Reinserts all items.
+    //Items straddling midlines then no longer pile up in the upper nodes, at the cost of overlapping siblings.
+    public void setLooseness(float looseness) {
+        assert looseness >= 1;
+
+        this.looseness = looseness;
+        rebuild(root.bounds.minX, root.bounds.minY, root.bounds.width, root.bounds.height);
+    }
+
+    public float getLooseness() {
+        return looseness;
+    }
+
+    //When set, items outside the root make it grow: a root twice the size is added above it, no item is reinserted.
+    public void setAutoGrow(boolean autoGrow) {
+        this.autoGrow = autoGrow;
+    }
+
+    public boolean isAutoGrow() {
+        return autoGrow;
+    }
+
+    //Drops root levels while a single quadrant holds every item, undoing growth once items have left. Stops at the
+    //bounds given to the constructor or resize.
+    public void shrink() {
+        while (root.childs != null && root.leafCount == 0) {
+            TreeNode<T> only = null;
+            for (TreeNode<T> child : root.childs) {
+                if (child.size > 0) {
+                    if (only != null) {
+                        return;
+                    }
+                    only = child;
+                }
+            }
+            if (only == null || !covers(only.bounds, extent)) {
+                return;
+            }
+
+            for (TreeNode<T> child : root.childs) {
+                if (child != only) {
+                    releaseTreeNodes(child);
+                }
+            }
+            root.childs = null;
+            releaseTreeNode(root);
+            only.parent = null;
+            only.offsetDepth(-1);
+            root = only;
+        }
+    }
+
+    private static boolean covers(Rectangle outer, Rectangle inner) {
+        return outer.minX <= inner.minX && outer.minY <= inner.minY
+                && outer.minX + outer.width >= inner.minX + inner.width
+                && outer.minY + outer.height >= inner.minY + inner.height;
+    }
+
+    //Starts reporting searches, splits, merges and relocations into stats, null turns it off again
+    public void setStats(TreeStats stats) {
+        this.stats = stats;
+    }
+
+    public TreeStats getStats() {
+        return stats;
+    }
+
+    //Walks the tree for its shape, also published to the stats for JMX when enabled
+    public TreeStatsSnapshot snapshotStats() {
+        int depth = root.maxDepth() - ROOT_DEPTH + 1;
+        int[] itemsPerDepth = new int[depth];
+        int[] nodesPerDepth = new int[depth];
+        root.countDepths(itemsPerDepth, nodesPerDepth);
+        TreeStatsSnapshot snapshot = new TreeStatsSnapshot(stats, itemsPerDepth, nodesPerDepth, treeNodeHighWaterMark, leafNodeHighWaterMark);
+        if (stats != null) {
+            stats.publish(snapshot);
+        }
+        return snapshot;
+    }
+
+    //Rebuilds the tree from the given items plus those already inserted, without per-item splitting.
+    public void bulkLoad(Collection<T> items) {
+        bulkLoad(items, false);
+    }
+
+    //Items are sorted in Z-order, parallel only sorts and computes keys in parallel.
+    public void bulkLoad(Collection<T> items, boolean parallel) {
+        if (subscriptions != null) {
+            for (LeafNode<T> leafNode : leafMap.values()) {
+                T item = leafNode.item;
+                bufferPrevious.set(leafNode.bounds);
+                leafNode.bounds.set(item.getMinX(), item.getMinY(), item.getWidth(), item.getHeight());
+                notifySubscriptions(item, bufferPrevious, leafNode.bounds);
+            }
+        }
+        //Items already held or listed twice are loaded once, those already held come first
+        Set<T> unique = new LinkedHashSet<>(leafMap.keySet());
+        int existing = unique.size();
+        unique.addAll(items);
+        List<T> all = new ArrayList<>(unique);
+        clearItems();
+        if (autoGrow) {
+            //The root is still empty, so growing only replaces it
+            for (T item : all) {
+                bufferRectangle.set(item.getMinX(), item.getMinY(), item.getWidth(), item.getHeight());
+                growToFit(bufferRectangle);
+            }
+        }
+
+        int count = all.size();
+        float minX = root.bounds.minX, minY = root.bounds.minY;
+        float scaleX = MORTON_CELLS / Math.max(root.bounds.width, Float.MIN_NORMAL);
+        float scaleY = MORTON_CELLS / Math.max(root.bounds.height, Float.MIN_NORMAL);
+        long[] keys = new long[count];
+        IntStream indices = IntStream.range(0, count);
+        (parallel ? indices.parallel() : indices).forEach(i -> {
+            T item = all.get(i);
+            int x = mortonCell((item.getMinX() + item.getWidth() / 2 - minX) * scaleX);
+            int y = mortonCell((item.getMinY() + item.getHeight() / 2 - minY) * scaleY);
+            //Sign bit flipped, so the signed sort keeps the unsigned Z-order
+            keys[i] = ((interleave(x) | interleave(y) << 1) << 32 | i) ^ Long.MIN_VALUE;
+        });
+        if (parallel) {
+            Arrays.parallelSort(keys);
+        } else {
+            Arrays.sort(keys);
+        }
+
+        LeafNode<T>[] leafNodes = newLeafNodes(count);
+        for (int i = 0; i < count; i++) {
+            T item = all.get((int) keys[i]);
+            leafMap.put(item, leafNodes[i] = obtainLeafNode(item));
+        }
+        root.build(leafNodes, newLeafNodes(count), new int[count], 0, count);
+        insertHandles();
+        if (subscriptions != null) {
+            for (T item : all.subList(existing, count)) {
+                notifySubscriptions(item, null, leafMap.get(item).bounds);
+            }
+        }
+    }
+
+    public static <T extends Leaf> QuadTree<T> build(int nodeCapacity, float minX, float minY, float width, float height, Collection<T> items, boolean parallel) {
+        QuadTree<T> quadTree = new QuadTree<>(nodeCapacity, minX, minY, width, height);
+        quadTree.bulkLoad(items, parallel);
+        return quadTree;
+    }
+
+    //Updates all item
+    public void refresh() {
+        leafMap.keySet().forEach(this::insert);
+    }
+
+    //Flags an inserted item as moved, it is updated by the next refreshDirty
+    public void markDirty(T leaf) {
+        LeafNode<T> leafNode = leafMap.get(leaf);
+        if (leafNode != null && !leafNode.dirty) {
+            leafNode.dirty = true;
+            dirtyLeafs.add(leafNode);
+        }
+    }
+
+    //Updates only the given items
+    public void update(Collection<T> leafs) {
+        leafs.forEach(this::insert);
+    }
+
+    //Updates only the items flagged by markDirty since the last call
+    public void refreshDirty() {
+        for (LeafNode<T> leafNode : dirtyLeafs) {
+            if (leafNode.dirty) {
+                leafNode.dirty = false;
+                if (subscriptions != null) {
+                    bufferPrevious.set(leafNode.bounds);
+                }
+                if (updateBounds(leafNode)) {
+                    relocate(leafNode);
+                }
+                if (subscriptions != null) {
+                    notifySubscriptions(leafNode.item, bufferPrevious, leafNode.bounds);
+                }
+            }
+        }
+        dirtyLeafs.clear();
+    }
+
+    //Updates all item, reading bounds and finding the items that left their node on the ForkJoin common pool.
+    //Items must not be modified while this runs, relocation is then applied on the calling thread.
+    public void refreshParallel() {
+        if (subscriptions != null) {
+            //Events need the previous bounds of every moved item, in order on this thread
+            refresh();
+            return;
+        }
+        List<LeafNode<T>> moved = leafMap.values().parallelStream()
+                .filter(this::updateBounds)
+                .collect(Collectors.toList());
+        moved.forEach(this::relocate);
+    }
+
+    //Writer thread only. Copies the current state into a snapshot for acquireSnapshot,
+    //reusing the arrays of a replaced snapshot that no reader holds anymore.
+    public void publishSnapshot() {
+        QuadTreeSnapshot<T> next = null;
+        for (Iterator<QuadTreeSnapshot<T>> it = retiredSnapshots.iterator(); it.hasNext();) {
+            QuadTreeSnapshot<T> retired = it.next();
+            if (!retired.isReferenced()) {
+                it.remove();
+                next = retired;
+                break;
+            }
+        }
+        if (next == null) {
+            next = new QuadTreeSnapshot<>();
+        }
+
+        fill(next);
+
+        QuadTreeSnapshot<T> previous = snapshot;
+        snapshot = next;
+        if (previous != null) {
+            retiredSnapshots.add(previous);
+        }
+    }
+
+    //Writes the tree in the format opened by MappedQuadTree, ids maps each item to the int it is reported as.
+    //Meant for static trees that are built once and then loaded by many processes.
+    public void write(Path path, ToIntFunction<T> ids) throws IOException {
+        QuadTreeSnapshot<T> snapshot = new QuadTreeSnapshot<>();
+        fill(snapshot);
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            snapshot.write(channel, ids);
+        }
+    }
+
+    //Any thread. Latest published snapshot or null if none was published yet, release or close it when done.
+    public QuadTreeSnapshot<T> acquireSnapshot() {
+        while (true) {
+            QuadTreeSnapshot<T> current = snapshot;
+            if (current == null) {
+                return null;
+            }
+            current.acquire();
+            //Replaced in between, the writer may already be rewriting it
+            if (current == snapshot) {
+                return current;
+            }
+            current.release();
+        }
+    }
+
+    public float size() {
+        return root == null ? 0 : root.size;
+    }
+
+    //Pre-allocates so that the given number of nodes can be live without allocating
+    public void ensureCapacity(int treeNodes, int leafNodes) {
+        while (treeNodeCount + treePool.size() < treeNodes) {
+            treePool.addLast(new TreeNode<>(this));
+        }
+        while (leafNodeCount + leafPool.size() < leafNodes) {
+            leafPool.addLast(new LeafNode<>());
+        }
+    }
+
+    //Drops released nodes so they can be garbage collected, e.g. after a spike
+    public void trimPools() {
+        treePool.clear();
+        leafPool.clear();
+    }
+
+    public int getTreeNodeCount() {
+        return treeNodeCount;
+    }
+
+    public int getTreeNodeHighWaterMark() {
+        return treeNodeHighWaterMark;
+    }
+
+    public int getTreePoolSize() {
+        return treePool.size();
+    }
+
+    public int getLeafNodeCount() {
+        return leafNodeCount;
+    }
+
+    public int getLeafNodeHighWaterMark() {
+        return leafNodeHighWaterMark;
+    }
+
+    public int getLeafPoolSize() {
+        return leafPool.size();
+    }
+    
+    //Empties the tree of everything added through insert, registered items are detached but kept
+    private void clearItems() {
+        float minX = root.bounds.minX;
+        float minY = root.bounds.minY;
+        float width = root.bounds.width;
+        float height = root.bounds.height;
+
+        releaseTreeNodes(root);
+        leafMap.values().forEach(this::releaseLeafNode);
+        leafMap.clear();
+        dirtyLeafs.clear();
+        for (int i = 0; i < handleCount; i++) {
+            if (handles[i] != null) {
+                handles[i].treeNode = null;
+            }
+        }
+        root = obtainTreeNodeIndex(minX, minY, width, height, ROOT_DEPTH);
+    }
+
+    //Tells the subscriptions overlapping either bounds, null previous for an added item and null bounds for a removed one
+    private void notifySubscriptions(T item, Rectangle previous, Rectangle bounds) {
+        Rectangle area;
+        if (previous == null) {
+            area = bounds;
+        } else if (bounds == null) {
+            area = previous;
+        } else if (previous.minX == bounds.minX && previous.minY == bounds.minY
+                && previous.width == bounds.width && previous.height == bounds.height) {
+            return;
+        } else {
+            float minX = Math.min(previous.minX, bounds.minX);
+            float minY = Math.min(previous.minY, bounds.minY);
+            float maxX = Math.max(previous.minX + previous.width, bounds.minX + bounds.width);
+            float maxY = Math.max(previous.minY + previous.height, bounds.minY + bounds.height);
+            area = bufferNotifier.union;
+            area.set(minX, minY, maxX - minX, maxY - minY);
+        }
+
+        bufferNotifier.item = item;
+        bufferNotifier.previous = previous;
+        bufferNotifier.bounds = bounds;
+        subscriptions.search(bufferNotifier, area.minX, area.minY, area.width, area.height);
+        bufferNotifier.item = null;
+        bufferNotifier.previous = null;
+        bufferNotifier.bounds = null;
+    }
+
+    //Reports the items that entered or left a subscription's area, null previous for a new one and null area when emptied
+    private void scanArea(Subscription<T> subscription, Rectangle previous, Rectangle area) {
+        if (previous == null) {
+            bufferRectangle.set(area);
+        } else if (area == null) {
+            bufferRectangle.set(previous);
+        } else {
+            float minX = Math.min(previous.minX, area.minX);
+            float minY = Math.min(previous.minY, area.minY);
+            float maxX = Math.max(previous.minX + previous.width, area.minX + area.width);
+            float maxY = Math.max(previous.minY + previous.height, area.minY + area.height);
+            bufferRectangle.set(minX, minY, maxX - minX, maxY - minY);
+        }
+
+        bufferScanner.subscription = subscription;
+        bufferScanner.previous = previous;
+        bufferScanner.area = area;
+        //Counted like any search, so the visits it records do not skew the per search averages
+        if (stats != null) {
+            stats.search();
+        }
+        root.search(bufferScanner, bufferRectangle);
+        bufferScanner.subscription = null;
+        bufferScanner.previous = null;
+        bufferScanner.area = null;
+    }
+
+    //Puts detached registered items back from the root
+    private void insertHandles() {
+        for (int i = 0; i < handleCount; i++) {
+            LeafNode<T> leafNode = handles[i];
+            if (leafNode != null) {
+                leafNode.treeNode = null;
+                place(leafNode);
+            }
+        }
+    }
+
+    //Detaches the leaf, updates sizes and collapses the highest ancestor that fell to mergeThreshold
+    private void removeLeafNode(LeafNode<T> leafNode) {
+        TreeNode<T> treeNode = leafNode.treeNode;
+        TreeNode<T> mergeNode = null;
+        treeNode.removeLeaf(leafNode);
+        do {
+            treeNode.size--;
+            if (treeNode.childs != null && treeNode.size <= mergeThreshold) {
+                mergeNode = treeNode;
+            }
+            treeNode = treeNode.parent;
+        } while (treeNode != null);
+        leafNode.treeNode = null;
+
+        if (mergeNode != null) {
+            mergeNode.merge();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Leaf> LeafNode<T>[] newLeafNodes(int length) {
+        return (LeafNode<T>[]) new LeafNode<?>[length];
+    }
+
+    //Reads the item's bounds, returns true if it no longer belongs to its node. Only writes to the leaf node.
+    private boolean updateBounds(LeafNode<T> leafNode) {
+        T item = leafNode.item;
+        leafNode.bounds.set(item.getMinX(), item.getMinY(), item.getWidth(), item.getHeight());
+        TreeNode<T> treeNode = leafNode.treeNode;
+        if (treeNode.parent != null && !treeNode.looseBounds.contains(leafNode.bounds)) {
+            return true;
+        }
+        //The root must grow, relocate does that even for leafs the root holds itself
+        if (autoGrow && !root.bounds.contains(leafNode.bounds)) {
+            return true;
+        }
+        return treeNode.childs != null && treeNode.indexOf(leafNode.bounds) != SELF;
+    }
+
+    //Reinserts from the lowest ancestor that still contains the leaf, only that part of the tree changes
+    private void relocate(LeafNode<T> leafNode) {
+        if (stats != null) {
+            stats.relocate();
+        }
+        TreeNode<T> treeNode = leafNode.treeNode;
+        TreeNode<T> target = treeNode;
+        while (target.parent != null && !target.looseBounds.contains(leafNode.bounds)) {
+            target = target.parent;
+        }
+
+        TreeNode<T> mergeNode = null;
+        treeNode.removeLeaf(leafNode);
+        for (; treeNode != target; treeNode = treeNode.parent) {
+            treeNode.size--;
+            if (treeNode.childs != null && treeNode.size <= mergeThreshold) {
+                mergeNode = treeNode;
+            }
+        }
+        target.size--;
+        if (mergeNode != null) {
+            mergeNode.merge();
+        }
+
+        if (target.parent == null) {
+            growToFit(leafNode.bounds);
+            target = root;
+        }
+        target.insert(leafNode);
+    }
+
+    private void growToFit(Rectangle aabb) {
+        for (int i = 0; autoGrow && i < MAX_GROWTH && !root.bounds.contains(aabb); i++) {
+            grow(aabb);
+        }
+    }
+
+    //Doubles the root towards aabb, the old root becomes one of the new root's quadrants
+    private void grow(Rectangle aabb) {
+        TreeNode<T> oldRoot = root;
+        Rectangle bounds = oldRoot.bounds;
+        boolean west = aabb.minX + aabb.width / 2 < bounds.minX + bounds.width / 2;
+        boolean south = aabb.minY + aabb.height / 2 < bounds.minY + bounds.height / 2;
+        root = obtainTreeNodeIndex(west ? bounds.minX - bounds.width : bounds.minX,
+                south ? bounds.minY - bounds.height : bounds.minY,
+                bounds.width * 2, bounds.height * 2, ROOT_DEPTH);
+        if (oldRoot.size == 0) {
+            releaseTreeNodes(oldRoot);
+            return;
+        }
+
+        root.split();
+        int index = west ? (south ? NE : SE) : (south ? NW : SW);
+        releaseTreeNode(root.childs[index]);
+        root.childs[index] = oldRoot;
+        root.size = oldRoot.size;
+        oldRoot.parent = root;
+        oldRoot.offsetDepth(1);
+
+        //The old root may hold items outside of its bounds, they go back through the new root
+        for (int i = 0; i < oldRoot.leafCount; i++) {
+            LeafNode<T> leafNode = oldRoot.leafs[i];
+            if (!oldRoot.looseBounds.contains(leafNode.bounds)) {
+                bufferLeafs.add(leafNode);
+            }
+        }
+        for (LeafNode<T> leafNode : bufferLeafs) {
+            oldRoot.removeLeaf(leafNode);
+            oldRoot.size--;
+            root.size--;
+            root.insert(leafNode);
+        }
+        bufferLeafs.clear();
     }
 
-    //APPENDS to result
-    public List<T> search(List<T> result, float minX, float minY, float width, float height) {
-        bufferRectangle.set(minX, minY, width, height);
-        return root.search(result, bufferRectangle);
+    private void fill(QuadTreeSnapshot<T> snapshot) {
+        snapshot.ensureCapacity(treeNodeCount, root.size);
+        snapshot.nodeCount = 1;
+        snapshot.itemCount = 0;
+        writeSnapshot(snapshot, root, 0);
     }
 
-    //Visits all nodes and items using depth first search.
-    public void traverse(QuadTreeVisitor<T> renderer) {
-        root.traverse(renderer);
-    }
+    //Depth first, so that every subtree's items end up in one contiguous range
+    private void writeSnapshot(QuadTreeSnapshot<T> snapshot, TreeNode<T> treeNode, int id) {
+        int offset = id * QuadTreeSnapshot.STRIDE;
+        Rectangle bounds = treeNode.looseBounds;
+        snapshot.nodeBounds[offset + QuadTreeSnapshot.MIN_X] = bounds.minX;
+        snapshot.nodeBounds[offset + QuadTreeSnapshot.MIN_Y] = bounds.minY;
+        snapshot.nodeBounds[offset + QuadTreeSnapshot.MAX_X] = bounds.minX + bounds.width;
+        snapshot.nodeBounds[offset + QuadTreeSnapshot.MAX_Y] = bounds.minY + bounds.height;
 
-    //Resets everything, leaving only an empty root node
-    public void clear() {
-        float minX = root.bounds.minX;
-        float minY = root.bounds.minY;
-        float width = root.bounds.width;
-        float height = root.bounds.height;
+        snapshot.nodeItemStart[id] = snapshot.itemCount;
+        for (int i = 0; i < treeNode.leafCount; i++) {
+            LeafNode<T> leafNode = treeNode.leafs[i];
+            int index = snapshot.itemCount++;
+            int itemOffset = index * QuadTreeSnapshot.STRIDE;
+            snapshot.items[index] = leafNode.item;
+            snapshot.itemBounds[itemOffset + QuadTreeSnapshot.MIN_X] = leafNode.bounds.minX;
+            snapshot.itemBounds[itemOffset + QuadTreeSnapshot.MIN_Y] = leafNode.bounds.minY;
+            snapshot.itemBounds[itemOffset + QuadTreeSnapshot.MAX_X] = leafNode.bounds.minX + leafNode.bounds.width;
+            snapshot.itemBounds[itemOffset + QuadTreeSnapshot.MAX_Y] = leafNode.bounds.minY + leafNode.bounds.height;
+        }
+        snapshot.nodeItemEnd[id] = snapshot.itemCount;
 
-        treeIndex.clear();
-        leafIndex.clear();
-        leafMap.clear();
-        root = obtainTreeNodeIndex(minX, minY, width, height, ROOT_DEPTH);
+        if (treeNode.childs != null) {
+            int child = snapshot.nodeCount;
+            snapshot.nodeCount += LAYER_SIZE;
+            snapshot.nodeChild[id] = child;
+            for (int i = 0; i < LAYER_SIZE; i++) {
+                writeSnapshot(snapshot, treeNode.childs[i], child + i);
+            }
+        } else {
+            snapshot.nodeChild[id] = QuadTreeSnapshot.NONE;
+        }
+        snapshot.nodeSubtreeEnd[id] = snapshot.itemCount;
     }
 
-    //Creates new root node, reinserts all items.
-    public void resize(float minX, float minY, float width, float height) {
-        treeIndex.clear();
-        leafIndex.clear();
-        root = obtainTreeNodeIndex(minX, minY, width, height, ROOT_DEPTH);
-        leafMap.replaceAll((key, value) -> obtainLeafNode(key));
-        leafMap.keySet().forEach(this::insert);
+    private NearestEntry<T> obtainEntry(float distance, TreeNode<T> treeNode, LeafNode<T> leafNode) {
+        if (bufferEntryCount == bufferEntries.size()) {
+            bufferEntries.add(new NearestEntry<>());
+        }
+        NearestEntry<T> entry = bufferEntries.get(bufferEntryCount++);
+        entry.distance = distance;
+        entry.treeNode = treeNode;
+        entry.leafNode = leafNode;
+        return entry;
     }
 
-    //Updates all item
-    public void refresh() {
-        leafMap.keySet().forEach(this::insert);
+    private void releaseEntries() {
+        bufferQueue.clear();
+        for (int i = 0; i < bufferEntryCount; i++) {
+            NearestEntry<T> entry = bufferEntries.get(i);
+            entry.treeNode = null;
+            entry.leafNode = null;
+        }
+        bufferEntryCount = 0;
     }
 
-    public float size() {
-        return root == null ? 0 : root.size;
+    private static int mortonCell(float value) {
+        return (int) Math.max(0, Math.min(MORTON_CELLS - 1, value));
     }
-    
+
+    //Spreads the low 16 bits so that another axis can be interleaved in between
+    private static long interleave(int value) {
+        long bits = value & 0xFFFF;
+        bits = (bits | bits << 8) & 0x00FF00FF;
+        bits = (bits | bits << 4) & 0x0F0F0F0F;
+        bits = (bits | bits << 2) & 0x33333333;
+        bits = (bits | bits << 1) & 0x55555555;
+        return bits;
+    }
+
     private LeafNode<T> getLeafNode(T leaf) {
         LeafNode<T> leafNode = leafMap.get(leaf);
         if (leafNode == null) {
@@ -141,72 +1116,304 @@ public class QuadTree<T extends Leaf> {
     }
 
     private LeafNode<T> obtainLeafNode(T item) {
-        int index = leafIndex.nextClearBit(0);
-        while (index >= leafPool.size()) {
-            leafPool.add(new LeafNode<>(leafPool.size()));
-        }
-        leafIndex.set(index);
-
-        LeafNode<T> leafNode = leafPool.get(index);
+        LeafNode<T> leafNode = obtainLeafNode();
         leafNode.item = item;
-        leafNode.treeNode = null;
         leafNode.bounds.set(item.getMinX(), item.getMinY(), item.getWidth(), item.getHeight());
         return leafNode;
     }
 
+    private LeafNode<T> obtainLeafNode() {
+        LeafNode<T> leafNode = leafPool.isEmpty() ? new LeafNode<>() : leafPool.removeLast();
+        leafNodeHighWaterMark = Math.max(leafNodeHighWaterMark, ++leafNodeCount);
+
+        leafNode.treeNode = null;
+        return leafNode;
+    }
+
     private TreeNode<T> obtainTreeNodeIndex(float minX, float minY, float width, float height, int depth) {
         return obtainTreeNode(null, minX, minY, width, height, depth);
     }
 
+    private void releaseLeafNode(LeafNode<T> leafNode) {
+        leafNode.item = null;
+        leafNode.treeNode = null;
+        leafNode.dirty = false;
+        leafNode.handle = NO_HANDLE;
+        leafNodeCount--;
+        leafPool.addLast(leafNode);
+    }
+
     private TreeNode<T> obtainTreeNode(TreeNode<T> parent, float minX, float minY, float width, float height, int depth) {
-        int index = treeIndex.nextClearBit(0);
-        while (index >= treePool.size()) {
-            treePool.add(new TreeNode<>(this, treePool.size()));
-        }
-        treeIndex.set(index);
+        TreeNode<T> treeNode = treePool.isEmpty() ? new TreeNode<>(this) : treePool.removeLast();
+        treeNodeHighWaterMark = Math.max(treeNodeHighWaterMark, ++treeNodeCount);
 
-        TreeNode<T> treeNode = treePool.get(index);
         treeNode.parent = parent;
         treeNode.depth = depth;
         treeNode.bounds.set(minX, minY, width, height);
+        float margin = (looseness - 1) / 2;
+        treeNode.looseBounds.set(minX - width * margin, minY - height * margin, width * looseness, height * looseness);
         treeNode.childs = null;
-        treeNode.leafs.clear();
+        treeNode.clearLeafs();
         treeNode.size = 0;
         return treeNode;
     }
 
+    private void releaseTreeNodes(TreeNode<T> treeNode) {
+        if (treeNode.childs != null) {
+            for (TreeNode<T> child : treeNode.childs) {
+                releaseTreeNodes(child);
+            }
+        }
+        releaseTreeNode(treeNode);
+    }
+
+    private void releaseTreeNode(TreeNode<T> treeNode) {
+        treeNode.parent = null;
+        treeNode.childs = null;
+        treeNode.clearLeafs();
+        treeNodeCount--;
+        treePool.addLast(treeNode);
+    }
+
+    private static class PairTask<T extends Leaf> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeNode<T> treeNode;
+        private final PairConsumer<T, T> consumer;
+        private final List<LeafNode<T>> ancestors;
+
+        public PairTask(TreeNode<T> treeNode, PairConsumer<T, T> consumer, List<LeafNode<T>> ancestors) {
+            this.treeNode = treeNode;
+            this.consumer = consumer;
+            this.ancestors = ancestors;
+        }
+
+        @Override
+        protected void compute() {
+            if (treeNode.size < PARALLEL_THRESHOLD || treeNode.childs == null) {
+                treeNode.forEachPair(consumer, ancestors, 0);
+                return;
+            }
+
+            treeNode.pairSelf(consumer, ancestors, 0);
+            List<PairTask<T>> tasks = new ArrayList<>(LAYER_SIZE);
+            for (TreeNode<T> child : treeNode.childs) {
+                if (child.size > 0) {
+                    List<LeafNode<T>> overlapping = new ArrayList<>();
+                    for (LeafNode<T> ancestor : ancestors) {
+                        if (ancestor.bounds.overlaps(child.looseBounds)) {
+                            overlapping.add(ancestor);
+                        }
+                    }
+                    tasks.add(new PairTask<>(child, consumer, overlapping));
+                }
+            }
+            invokeAll(tasks);
+            if (treeNode.root.looseness != 1) {
+                treeNode.joinChilds(consumer);
+            }
+        }
+    }
+
+    private static class JoinTask<T extends Leaf, U extends Leaf> extends RecursiveAction {
+
+        private static final long serialVersionUID = 1L;
+
+        private final TreeNode<T> treeNode;
+        private final TreeNode<U> other;
+        private final PairConsumer<T, U> consumer;
+
+        public JoinTask(TreeNode<T> treeNode, TreeNode<U> other, PairConsumer<T, U> consumer) {
+            this.treeNode = treeNode;
+            this.other = other;
+            this.consumer = consumer;
+        }
+
+        @Override
+        protected void compute() {
+            if (treeNode.size + other.size < PARALLEL_THRESHOLD || treeNode.childs == null || other.childs == null) {
+                treeNode.join(other, consumer);
+                return;
+            }
+
+            treeNode.joinSelf(other, consumer);
+            List<JoinTask<T, U>> tasks = new ArrayList<>(LAYER_SIZE * LAYER_SIZE);
+            for (TreeNode<T> child : treeNode.childs) {
+                for (TreeNode<U> otherChild : other.childs) {
+                    if (child.size > 0 && otherChild.size > 0 && child.looseBounds.overlaps(otherChild.looseBounds)) {
+                        tasks.add(new JoinTask<>(child, otherChild, consumer));
+                    }
+                }
+            }
+            invokeAll(tasks);
+        }
+    }
+
+    //What search reports each overlapping leaf to
+    private interface LeafConsumer<T extends Leaf> {
+
+        public boolean accept(LeafNode<T> leafNode);
+    }
+
+    private static class ItemConsumer<T extends Leaf> implements LeafConsumer<T> {
+
+        public IntersectionConsumer<T> consumer;
+
+        @Override
+        public boolean accept(LeafNode<T> leafNode) {
+            return consumer.accept(leafNode.item);
+        }
+    }
+
+    private static class HandleLeafConsumer<T extends Leaf> implements LeafConsumer<T> {
+
+        public HandleConsumer consumer;
+
+        @Override
+        public boolean accept(LeafNode<T> leafNode) {
+            return leafNode.handle == NO_HANDLE || consumer.accept(leafNode.handle);
+        }
+    }
+
+    private static class Subscription<T extends Leaf> implements Leaf {
+
+        public final Rectangle area = new Rectangle();
+        public AreaListener<T> listener;
+        public int handle;
+
+        @Override
+        public float getMinX() {
+            return area.minX;
+        }
+
+        @Override
+        public float getMinY() {
+            return area.minY;
+        }
+
+        @Override
+        public float getWidth() {
+            return area.width;
+        }
+
+        @Override
+        public float getHeight() {
+            return area.height;
+        }
+    }
+
+    //Compares one item's previous and current bounds against each subscription found
+    private static class AreaNotifier<T extends Leaf> implements IntersectionConsumer<Subscription<T>> {
+
+        public final Rectangle union = new Rectangle();
+        public T item;
+        public Rectangle previous, bounds;
+
+        @Override
+        public boolean accept(Subscription<T> subscription) {
+            boolean was = previous != null && previous.overlaps(subscription.area);
+            boolean is = bounds != null && bounds.overlaps(subscription.area);
+            if (was && is) {
+                subscription.listener.move(subscription.handle, item);
+            } else if (is) {
+                subscription.listener.enter(subscription.handle, item);
+            } else if (was) {
+                subscription.listener.leave(subscription.handle, item);
+            }
+            return true;
+        }
+    }
+
+    //Compares one subscription's previous and current area against each item found
+    private static class AreaScanner<T extends Leaf> implements LeafConsumer<T> {
+
+        public Subscription<T> subscription;
+        public Rectangle previous, area;
+
+        @Override
+        public boolean accept(LeafNode<T> leafNode) {
+            boolean was = previous != null && leafNode.bounds.overlaps(previous);
+            boolean is = area != null && leafNode.bounds.overlaps(area);
+            if (is && !was) {
+                subscription.listener.enter(subscription.handle, leafNode.item);
+            } else if (was && !is) {
+                subscription.listener.leave(subscription.handle, leafNode.item);
+            }
+            return true;
+        }
+    }
+
+    //Either a tree node or a leaf node queued by its squared distance
+    private static class NearestEntry<T extends Leaf> implements Comparable<NearestEntry<T>> {
+
+        public float distance;
+        public TreeNode<T> treeNode;
+        public LeafNode<T> leafNode;
+
+        @Override
+        public int compareTo(NearestEntry<T> other) {
+            return Float.compare(distance, other.distance);
+        }
+    }
+
     private static class LeafNode<T extends Leaf> {
 
-        public final int index;
         public TreeNode<T> treeNode;
         public final Rectangle bounds = new Rectangle();
         public T item;
-
-        public LeafNode(int index) {
-            this.index = index;
-        }
+        public boolean dirty;
+        public int handle = NO_HANDLE;
+        //Index in its tree node's leafs
+        public int slot;
     }
 
     private static class TreeNode<T extends Leaf> {
 
         public final QuadTree<T> root;
-        public final int index;
         public TreeNode<T> parent;
         public TreeNode<T>[] childs;
         public int depth, size;
         public final Rectangle bounds = new Rectangle();
-        public final Set<LeafNode<T>> leafs = new HashSet<>();
+        //Below the root every item lies inside looseBounds, the same as bounds unless the tree is loose
+        public final Rectangle looseBounds = new Rectangle();
+        //Dense, [0, leafCount) are set. Removal moves the last leaf into the freed slot
+        public LeafNode<T>[] leafs;
+        public int leafCount;
 
-        public TreeNode(QuadTree<T> root, int index) {
+        public TreeNode(QuadTree<T> root) {
             this.root = root;
-            this.index = index;
+            leafs = newLeafNodes(root.nodeCapacity + 1);
+        }
+
+        public void addLeaf(LeafNode<T> leafNode) {
+            if (leafCount == leafs.length) {
+                leafs = Arrays.copyOf(leafs, leafCount * 2);
+            }
+            leafNode.slot = leafCount;
+            leafs[leafCount++] = leafNode;
+        }
+
+        public void removeLeaf(LeafNode<T> leafNode) {
+            assert leafs[leafNode.slot] == leafNode;
+
+            LeafNode<T> last = leafs[--leafCount];
+            leafs[leafNode.slot] = last;
+            last.slot = leafNode.slot;
+            leafs[leafCount] = null;
+        }
+
+        public void clearLeafs() {
+            Arrays.fill(leafs, 0, leafCount, null);
+            leafCount = 0;
         }
 
         public void traverse(QuadTreeVisitor<T> visitor) {
             if (size > 0) {
                 root.bufferRectangle.set(bounds);
                 root.bufferItems.clear();
-                for (LeafNode<T> leafNode : leafs) {
+                for (int i = 0; i < leafCount; i++) {
+                    LeafNode<T> leafNode = leafs[i];
                     root.bufferItems.add(leafNode.item);
                 }
                 visitor.visit(root.bufferRectangle, root.bufferItems);
@@ -231,64 +1438,331 @@ public class QuadTree<T extends Leaf> {
             }
 
             treeNode.size++;
-            treeNode.leafs.add(leafNode);
+            treeNode.addLeaf(leafNode);
             leafNode.treeNode = treeNode;
 
-            if (treeNode.childs == null && treeNode.leafs.size() > root.nodeCapacity) {
+            if (treeNode.childs == null && treeNode.leafCount > root.nodeCapacity) {
                 treeNode.split();
-                for (Iterator<LeafNode<T>> it = treeNode.leafs.iterator(); it.hasNext();) {
-                    LeafNode<T> t = it.next();
+                //Backwards, so the leaf swapped into a freed slot has already been looked at
+                for (int i = treeNode.leafCount - 1; i >= 0; i--) {
+                    LeafNode<T> t = treeNode.leafs[i];
                     int childIndex = treeNode.indexOf(t.bounds);
                     if (childIndex != SELF) {
-                        it.remove();
+                        treeNode.removeLeaf(t);
                         treeNode.childs[childIndex].insert(t);
                     }
                 }
             }
         }
 
-        public List<T> search(List<T> result, Rectangle targetAABB) {
+        //Reports pairs within this subtree and against ancestors[from, end), which is restored on return.
+        //Only ancestors overlapping a child's bounds are passed down to it.
+        public void forEachPair(PairConsumer<T, T> consumer, List<LeafNode<T>> ancestors, int from) {
+            pairSelf(consumer, ancestors, from);
+            int end = ancestors.size();
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size > 0) {
+                        for (int i = from; i < end; i++) {
+                            if (ancestors.get(i).bounds.overlaps(child.looseBounds)) {
+                                ancestors.add(ancestors.get(i));
+                            }
+                        }
+                        child.forEachPair(consumer, ancestors, end);
+                        while (ancestors.size() > end) {
+                            ancestors.remove(ancestors.size() - 1);
+                        }
+                    }
+                }
+                if (root.looseness != 1) {
+                    joinChilds(consumer);
+                }
+            }
+        }
+
+        //Loose siblings overlap, so items in different child subtrees can overlap too
+        public void joinChilds(PairConsumer<T, T> consumer) {
+            for (int i = 0; i < LAYER_SIZE; i++) {
+                for (int j = i + 1; j < LAYER_SIZE; j++) {
+                    if (childs[i].size > 0 && childs[j].size > 0 && childs[i].looseBounds.overlaps(childs[j].looseBounds)) {
+                        childs[i].join(childs[j], consumer);
+                    }
+                }
+            }
+        }
+
+        //Tests own leafs against ancestors[from, end) and each other, then appends them to ancestors
+        public void pairSelf(PairConsumer<T, T> consumer, List<LeafNode<T>> ancestors, int from) {
+            for (int j = 0; j < leafCount; j++) {
+                LeafNode<T> leafNode = leafs[j];
+                for (int i = from; i < ancestors.size(); i++) {
+                    LeafNode<T> other = ancestors.get(i);
+                    if (leafNode.bounds.overlaps(other.bounds)) {
+                        consumer.accept(other.item, leafNode.item);
+                    }
+                }
+                ancestors.add(leafNode);
+            }
+        }
+
+        //Reports pairs between this subtree and other's subtree.
+        //Either both nodes are roots or both lie below their roots, where items are inside their node's bounds.
+        public <U extends Leaf> void join(TreeNode<U> other, PairConsumer<T, U> consumer) {
+            joinSelf(other, consumer);
+            if (childs != null && other.childs != null) {
+                for (TreeNode<T> child : childs) {
+                    for (TreeNode<U> otherChild : other.childs) {
+                        if (child.size > 0 && otherChild.size > 0 && child.looseBounds.overlaps(otherChild.looseBounds)) {
+                            child.join(otherChild, consumer);
+                        }
+                    }
+                }
+            }
+        }
+
+        //Own leafs against other's subtree, then other's own leafs against the rest of this subtree
+        public <U extends Leaf> void joinSelf(TreeNode<U> other, PairConsumer<T, U> consumer) {
+            if (other.size > 0) {
+                for (int i = 0; i < leafCount; i++) {
+                    LeafNode<T> leafNode = leafs[i];
+                    other.pairAfter(leafNode, consumer);
+                }
+            }
+            if (childs != null) {
+                for (int i = 0; i < other.leafCount; i++) {
+                    LeafNode<U> leafNode = other.leafs[i];
+                    for (TreeNode<T> child : childs) {
+                        if (child.size > 0 && child.looseBounds.overlaps(leafNode.bounds)) {
+                            child.pairBefore(leafNode, consumer);
+                        }
+                    }
+                }
+            }
+        }
+
+        //Reports (probe, item) for items of this subtree overlapping probe, this node's own bounds are not tested
+        public <U extends Leaf> void pairAfter(LeafNode<U> probe, PairConsumer<U, T> consumer) {
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (leafNode.bounds.overlaps(probe.bounds)) {
+                    consumer.accept(probe.item, leafNode.item);
+                }
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size > 0 && child.looseBounds.overlaps(probe.bounds)) {
+                        child.pairAfter(probe, consumer);
+                    }
+                }
+            }
+        }
+
+        //Reports (item, probe) for items of this subtree overlapping probe, this node's own bounds are not tested
+        public <U extends Leaf> void pairBefore(LeafNode<U> probe, PairConsumer<T, U> consumer) {
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (leafNode.bounds.overlaps(probe.bounds)) {
+                    consumer.accept(leafNode.item, probe.item);
+                }
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size > 0 && child.looseBounds.overlaps(probe.bounds)) {
+                        child.pairBefore(probe, consumer);
+                    }
+                }
+            }
+        }
+
+        //Places leafNodes[from, to) into this empty node's subtree, splitting the same way insert would.
+        //Leafs keep their relative order, so Z-ordered input stays Z-ordered in every node.
+        public void build(LeafNode<T>[] leafNodes, LeafNode<T>[] buffer, int[] childIndices, int from, int to) {
+            size = to - from;
+            if (size <= root.nodeCapacity) {
+                for (int i = from; i < to; i++) {
+                    addLeaf(leafNodes[i]);
+                    leafNodes[i].treeNode = this;
+                }
+                return;
+            }
+
+            split();
+            int ne = 0, nw = 0, se = 0;
+            for (int i = from; i < to; i++) {
+                int childIndex = childIndices[i] = indexOf(leafNodes[i].bounds);
+                if (childIndex == SELF) {
+                    addLeaf(leafNodes[i]);
+                    leafNodes[i].treeNode = this;
+                } else if (childIndex == NE) {
+                    ne++;
+                } else if (childIndex == NW) {
+                    nw++;
+                } else if (childIndex == SE) {
+                    se++;
+                }
+            }
+
+            int[] offsets = {from, from + ne, from + ne + nw, from + ne + nw + se};
+            int end = from + size - leafCount;
+            for (int i = from; i < to; i++) {
+                if (childIndices[i] != SELF) {
+                    buffer[offsets[childIndices[i]]++] = leafNodes[i];
+                }
+            }
+            System.arraycopy(buffer, from, leafNodes, from, end - from);
+
+            childs[NE].build(leafNodes, buffer, childIndices, from, from + ne);
+            childs[NW].build(leafNodes, buffer, childIndices, from + ne, from + ne + nw);
+            childs[SE].build(leafNodes, buffer, childIndices, from + ne + nw, from + ne + nw + se);
+            childs[SW].build(leafNodes, buffer, childIndices, from + ne + nw + se, end);
+        }
+
+        public boolean search(LeafConsumer<T> consumer, Rectangle targetAABB) {
+            //Siblings overlap, so there is no single child to descend into
+            if (root.looseness != 1) {
+                return collectAll(consumer, targetAABB);
+            }
+
             TreeNode<T> treeNode = this;
             while (treeNode != null) {
                 int childIndex = treeNode.indexOf(targetAABB);
                 if (childIndex == SELF) {
                     break;
                 }
-                treeNode.collectSelf(result, targetAABB);
+                if (!treeNode.collectSelf(consumer, targetAABB)) {
+                    return false;
+                }
                 if (treeNode.childs == null || (treeNode = treeNode.childs[childIndex]).size <= 0) {
                     treeNode = null;
                 }
             }
 
-            if (treeNode != null) {
-                treeNode.collectAll(result, targetAABB);
+            return treeNode == null || treeNode.collectAll(consumer, targetAABB);
+        }
+
+        public boolean collectSelf(LeafConsumer<T> consumer, Rectangle aabb) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            if (leafCount > 0) {
+                for (int i = 0; i < leafCount; i++) {
+                    LeafNode<T> leafNode = leafs[i];
+                    if (leafNode.bounds.overlaps(aabb) && !consumer.accept(leafNode)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        //Root is searched whatever its bounds, it may hold items outside of them
+        public boolean searchShape(LeafConsumer<T> consumer, ShapeQuery shape) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                Rectangle aabb = leafNode.bounds;
+                if (shape.intersects(aabb.minX, aabb.minY, aabb.width, aabb.height) && !consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    Rectangle aabb = child.looseBounds;
+                    if (child.size == 0 || !shape.intersects(aabb.minX, aabb.minY, aabb.width, aabb.height)) {
+                        continue;
+                    }
+                    //Below the root every item lies inside its node's loose bounds
+                    if (shape.contains(aabb.minX, aabb.minY, aabb.width, aabb.height)) {
+                        if (!child.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!child.searchShape(consumer, shape)) {
+                        return false;
+                    }
+                }
             }
+            return true;
+        }
 
-            return result;
+        //Every item of the subtree, without any test
+        public boolean reportAll(LeafConsumer<T> consumer) {
+            //A visit, but no item is compared
+            if (root.stats != null) {
+                root.stats.visit(0);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (!consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size > 0 && !child.reportAll(consumer)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
         }
 
-        public void collectSelf(List<T> result, Rectangle aabb) {
-            if (!leafs.isEmpty()) {
-                for (LeafNode<T> leafNode : leafs) {
-                    if (leafNode.bounds.overlaps(aabb)) {
-                        result.add(leafNode.item);
+        //Children missing the window are skipped and those inside it are reported whole,
+        //below the root every item lies inside its node's loose bounds
+        public boolean collectAll(LeafConsumer<T> consumer, Rectangle aabb) {
+            if (!collectSelf(consumer, aabb)) {
+                return false;
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size == 0 || !child.looseBounds.overlaps(aabb)) {
+                        continue;
+                    }
+                    if (aabb.contains(child.looseBounds)) {
+                        if (!child.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!child.collectAll(consumer, aabb)) {
+                        return false;
                     }
                 }
             }
+            return true;
         }
 
-        public void collectAll(List<T> result, Rectangle aabb) {
-            if (size > 0) {
-                collectSelf(result, aabb);
-                if (childs != null) {
-                    for (TreeNode<T> child : childs) {
-                        child.collectAll(result, aabb);
+        //Same walk as collectAll, only reporting items inside the window
+        public boolean collectContained(LeafConsumer<T> consumer, Rectangle aabb) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (aabb.contains(leafNode.bounds) && !consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    if (child.size == 0 || !child.looseBounds.overlaps(aabb)) {
+                        continue;
+                    }
+                    if (aabb.contains(child.looseBounds)) {
+                        if (!child.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!child.collectContained(consumer, aabb)) {
+                        return false;
                     }
                 }
             }
+            return true;
         }
 
         public int indexOf(Rectangle aabb) {
+            if (root.looseness != 1) {
+                return indexOfLoose(aabb);
+            }
             if (bounds.contains(aabb)) {
                 float midX = bounds.minX + bounds.width / 2;
                 float midY = bounds.minY + bounds.height / 2;
@@ -313,7 +1787,87 @@ public class QuadTree<T extends Leaf> {
             return SELF;
         }
 
+        //The quadrant holding the centre, if its loose bounds contain the whole item. Same arithmetic as obtainTreeNode.
+        private int indexOfLoose(Rectangle aabb) {
+            float halfWidth = bounds.width / 2;
+            float halfHeight = bounds.height / 2;
+            boolean east = aabb.minX + aabb.width / 2 > bounds.minX + halfWidth;
+            boolean north = aabb.minY + aabb.height / 2 > bounds.minY + halfHeight;
+            float minX = east ? bounds.minX + halfWidth : bounds.minX;
+            float minY = north ? bounds.minY + halfHeight : bounds.minY;
+
+            float margin = (root.looseness - 1) / 2;
+            float looseMinX = minX - halfWidth * margin;
+            float looseMinY = minY - halfHeight * margin;
+            if (aabb.minX > looseMinX
+                    && aabb.minX + aabb.width < looseMinX + halfWidth * root.looseness
+                    && aabb.minY > looseMinY
+                    && aabb.minY + aabb.height < looseMinY + halfHeight * root.looseness) {
+                return north ? (east ? NE : NW) : (east ? SE : SW);
+            }
+            return SELF;
+        }
+
+        public int maxDepth() {
+            int maxDepth = depth;
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    maxDepth = Math.max(maxDepth, child.maxDepth());
+                }
+            }
+            return maxDepth;
+        }
+
+        public void countDepths(int[] itemsPerDepth, int[] nodesPerDepth) {
+            itemsPerDepth[depth - ROOT_DEPTH] += leafCount;
+            nodesPerDepth[depth - ROOT_DEPTH]++;
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    child.countDepths(itemsPerDepth, nodesPerDepth);
+                }
+            }
+        }
+
+        public void offsetDepth(int offset) {
+            depth += offset;
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    child.offsetDepth(offset);
+                }
+            }
+        }
+
+        //Pulls every leaf of the subtree into this node and returns the child nodes to the pool
+        public void merge() {
+            if (root.stats != null) {
+                root.stats.merge();
+            }
+            for (TreeNode<T> child : childs) {
+                child.collapseInto(this);
+            }
+            childs = null;
+        }
+
+        private void collapseInto(TreeNode<T> target) {
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                leafNode.treeNode = target;
+                target.addLeaf(leafNode);
+            }
+            clearLeafs();
+            if (childs != null) {
+                for (TreeNode<T> child : childs) {
+                    child.collapseInto(target);
+                }
+                childs = null;
+            }
+            root.releaseTreeNode(this);
+        }
+
         public void split() {
+            if (root.stats != null) {
+                root.stats.split();
+            }
             float halfWidth = bounds.width / 2;
             float halfHeight = bounds.height / 2;
             childs = new TreeNode[LAYER_SIZE];
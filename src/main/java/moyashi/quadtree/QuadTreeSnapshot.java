@@ -0,0 +1,353 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.WritableByteChannel;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Predicate;
+import java.util.function.ToIntFunction;
+
+/**
+ * Immutable, array backed copy of a {@link QuadTree} published by {@link QuadTree#publishSnapshot()}.
+ * Any number of threads may query an acquired snapshot while the writer keeps mutating the tree.
+ * Nodes are stored depth first, so the items of a subtree are one contiguous range.
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+public class QuadTreeSnapshot<T extends Leaf> implements AutoCloseable {
+
+    static final int NONE = -1, LAYER_SIZE = 4;
+    //Bounds are stored as minX, minY, maxX, maxY
+    static final int MIN_X = 0, MIN_Y = 1, MAX_X = 2, MAX_Y = 3, STRIDE = 4;
+    private static final int ROOT = 0;
+    //Bytes staged per channel write when writing a tree file
+    private static final int WRITE_BUFFER = 1 << 16;
+    //Readers run on many threads, each reuses its own collector for the list and count searches
+    private static final ThreadLocal<SearchCollector<?>> COLLECTORS = ThreadLocal.withInitial(SearchCollector::new);
+
+    //Readers holding this snapshot, it is only rewritten once this drops to 0 after being replaced
+    private final AtomicInteger references = new AtomicInteger();
+
+    int nodeCount;
+    float[] nodeBounds = new float[0];
+    //First of LAYER_SIZE consecutive child ids, or NONE
+    int[] nodeChild = new int[0];
+    //Own items are [nodeItemStart, nodeItemEnd), the whole subtree is [nodeItemStart, nodeSubtreeEnd)
+    int[] nodeItemStart = new int[0];
+    int[] nodeItemEnd = new int[0];
+    int[] nodeSubtreeEnd = new int[0];
+
+    int itemCount;
+    float[] itemBounds = new float[0];
+    Object[] items = new Object[0];
+
+    QuadTreeSnapshot() {
+
+    }
+
+    //APPENDS to result
+    public List<T> search(List<T> result, float minX, float minY, float width, float height) {
+        SearchCollector<T> collector = collector();
+        collector.result = result;
+        try {
+            search(collector, minX, minY, width, height);
+        } finally {
+            collector.result = null;
+        }
+        return result;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(IntersectionConsumer<T> consumer, float minX, float minY, float width, float height) {
+        return search(ROOT, consumer, minX, minY, minX + width, minY + height);
+    }
+
+    public int count(float minX, float minY, float width, float height) {
+        SearchCollector<T> collector = collector();
+        collector.count = 0;
+        search(collector, minX, minY, width, height);
+        return collector.count;
+    }
+
+    public boolean anyIntersects(float minX, float minY, float width, float height) {
+        return !search(SearchCollector.stop(), minX, minY, width, height);
+    }
+
+    //Same contract as QuadTree.nearest, returns the number of items reported.
+    public int nearest(float x, float y, int k, float maxDistance, Predicate<T> filter, DistanceConsumer<T> consumer) {
+        float maxDistanceSquared = maxDistance * maxDistance;
+        int reported = 0;
+
+        //Entries are non-negative float distance bits above (id << 1 | isItem), so long order is distance order
+        long[] heap = new long[64];
+        int heapSize = 0;
+
+        //Root is entered unconditionally, it may hold items outside of its bounds
+        heap[heapSize++] = entry(0, ROOT, false);
+        while (reported < k && heapSize > 0) {
+            long entry = heap[0];
+            heap[0] = heap[--heapSize];
+            siftDown(heap, heapSize);
+
+            int id = (int) entry >>> 1;
+            if ((entry & 1) != 0) {
+                reported++;
+                if (!consumer.accept(item(id), (float) Math.sqrt(Float.intBitsToFloat((int) (entry >>> 32))))) {
+                    break;
+                }
+                continue;
+            }
+
+            for (int i = nodeItemStart[id]; i < nodeItemEnd[id]; i++) {
+                float distance = distanceSquared(itemBounds, i, x, y);
+                if (distance <= maxDistanceSquared && (filter == null || filter.test(item(i)))) {
+                    heap = push(heap, heapSize++, entry(distance, i, true));
+                }
+            }
+            int child = nodeChild[id];
+            if (child != NONE) {
+                for (int i = child; i < child + LAYER_SIZE; i++) {
+                    float distance = distanceSquared(nodeBounds, i, x, y);
+                    if (nodeItemStart[i] < nodeSubtreeEnd[i] && distance <= maxDistanceSquared) {
+                        heap = push(heap, heapSize++, entry(distance, i, false));
+                    }
+                }
+            }
+        }
+        return reported;
+    }
+
+    //Visits all nodes and items using depth first search.
+    public void traverse(QuadTreeVisitor<T> visitor) {
+        traverse(ROOT, visitor, new Rectangle(), new ArrayList<>());
+    }
+
+    public int size() {
+        return itemCount;
+    }
+
+    //Writes the format read by MappedQuadTree, ids maps each item to the int it is reported as.
+    //Staged through a small buffer, so the file is never held in memory at once.
+    public void write(WritableByteChannel channel, ToIntFunction<T> ids) throws IOException {
+        long bytes = MappedQuadTree.size(nodeCount, itemCount);
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalStateException("Tree needs " + bytes + " bytes, more than one mapping can hold");
+        }
+        ByteBuffer buffer = ByteBuffer.allocate(WRITE_BUFFER).order(ByteOrder.LITTLE_ENDIAN);
+        buffer.putInt(MappedQuadTree.MAGIC).putInt(MappedQuadTree.VERSION).putInt(nodeCount).putInt(itemCount);
+        write(channel, buffer, nodeBounds, nodeCount * STRIDE);
+        for (int[] section : new int[][]{nodeChild, nodeItemStart, nodeItemEnd, nodeSubtreeEnd}) {
+            write(channel, buffer, section, nodeCount);
+        }
+        write(channel, buffer, itemBounds, itemCount * STRIDE);
+        for (int i = 0; i < itemCount; i++) {
+            if (buffer.remaining() < MappedQuadTree.BYTES) {
+                flush(channel, buffer);
+            }
+            buffer.putInt(ids.applyAsInt(item(i)));
+        }
+        flush(channel, buffer);
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer, float[] values, int length) throws IOException {
+        for (int offset = 0; offset < length;) {
+            if (buffer.remaining() < MappedQuadTree.BYTES) {
+                flush(channel, buffer);
+            }
+            int count = Math.min(length - offset, buffer.remaining() / MappedQuadTree.BYTES);
+            buffer.asFloatBuffer().put(values, offset, count);
+            buffer.position(buffer.position() + count * MappedQuadTree.BYTES);
+            offset += count;
+        }
+    }
+
+    private static void write(WritableByteChannel channel, ByteBuffer buffer, int[] values, int length) throws IOException {
+        for (int offset = 0; offset < length;) {
+            if (buffer.remaining() < MappedQuadTree.BYTES) {
+                flush(channel, buffer);
+            }
+            int count = Math.min(length - offset, buffer.remaining() / MappedQuadTree.BYTES);
+            buffer.asIntBuffer().put(values, offset, count);
+            buffer.position(buffer.position() + count * MappedQuadTree.BYTES);
+            offset += count;
+        }
+    }
+
+    private static void flush(WritableByteChannel channel, ByteBuffer buffer) throws IOException {
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+        buffer.clear();
+    }
+
+    //Hands the snapshot back, it must not be used afterwards
+    public void release() {
+        references.decrementAndGet();
+    }
+
+    @Override
+    public void close() {
+        release();
+    }
+
+    void acquire() {
+        references.incrementAndGet();
+    }
+
+    boolean isReferenced() {
+        return references.get() > 0;
+    }
+
+    void ensureCapacity(int nodes, int itemCount) {
+        if (nodeChild.length < nodes) {
+            int capacity = Math.max(nodes, nodeChild.length * 2);
+            nodeBounds = Arrays.copyOf(nodeBounds, capacity * STRIDE);
+            nodeChild = Arrays.copyOf(nodeChild, capacity);
+            nodeItemStart = Arrays.copyOf(nodeItemStart, capacity);
+            nodeItemEnd = Arrays.copyOf(nodeItemEnd, capacity);
+            nodeSubtreeEnd = Arrays.copyOf(nodeSubtreeEnd, capacity);
+        }
+        if (items.length < itemCount) {
+            int capacity = Math.max(itemCount, items.length * 2);
+            itemBounds = Arrays.copyOf(itemBounds, capacity * STRIDE);
+            items = Arrays.copyOf(items, capacity);
+        } else if (itemCount < this.itemCount) {
+            //Drop references to items of the previous build
+            Arrays.fill(items, itemCount, this.itemCount, null);
+        }
+    }
+
+    private boolean search(int node, IntersectionConsumer<T> consumer, float minX, float minY, float maxX, float maxY) {
+        for (int i = nodeItemStart[node]; i < nodeItemEnd[node]; i++) {
+            int offset = i * STRIDE;
+            if (minX < itemBounds[offset + MAX_X]
+                    && maxX > itemBounds[offset + MIN_X]
+                    && minY < itemBounds[offset + MAX_Y]
+                    && maxY > itemBounds[offset + MIN_Y]
+                    && !consumer.accept(item(i))) {
+                return false;
+            }
+        }
+
+        int child = nodeChild[node];
+        if (child != NONE) {
+            for (int i = child; i < child + LAYER_SIZE; i++) {
+                //Below the root every item lies inside its node's bounds
+                int offset = i * STRIDE;
+                int start = nodeItemStart[i], end = nodeSubtreeEnd[i];
+                if (start == end
+                        || minX >= nodeBounds[offset + MAX_X]
+                        || maxX <= nodeBounds[offset + MIN_X]
+                        || minY >= nodeBounds[offset + MAX_Y]
+                        || maxY <= nodeBounds[offset + MIN_Y]) {
+                    continue;
+                }
+                if (minX < nodeBounds[offset + MIN_X]
+                        && maxX > nodeBounds[offset + MAX_X]
+                        && minY < nodeBounds[offset + MIN_Y]
+                        && maxY > nodeBounds[offset + MAX_Y]) {
+                    //Inside the window, the whole subtree is one range reported without tests
+                    for (int j = start; j < end; j++) {
+                        if (!consumer.accept(item(j))) {
+                            return false;
+                        }
+                    }
+                } else if (!search(i, consumer, minX, minY, maxX, maxY)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private void traverse(int node, QuadTreeVisitor<T> visitor, Rectangle bounds, List<T> buffer) {
+        if (nodeItemStart[node] < nodeSubtreeEnd[node]) {
+            int offset = node * STRIDE;
+            bounds.set(nodeBounds[offset + MIN_X], nodeBounds[offset + MIN_Y],
+                    nodeBounds[offset + MAX_X] - nodeBounds[offset + MIN_X], nodeBounds[offset + MAX_Y] - nodeBounds[offset + MIN_Y]);
+            buffer.clear();
+            for (int i = nodeItemStart[node]; i < nodeItemEnd[node]; i++) {
+                buffer.add(item(i));
+            }
+            visitor.visit(bounds, buffer);
+            int child = nodeChild[node];
+            if (child != NONE) {
+                for (int i = child; i < child + LAYER_SIZE; i++) {
+                    traverse(i, visitor, bounds, buffer);
+                }
+            }
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Leaf> SearchCollector<T> collector() {
+        //Only holds a result list while one search runs on this thread, so one instance serves every item type
+        return (SearchCollector<T>) COLLECTORS.get();
+    }
+
+    @SuppressWarnings("unchecked")
+    private T item(int index) {
+        return (T) items[index];
+    }
+
+    private static float distanceSquared(float[] bounds, int index, float x, float y) {
+        int offset = index * STRIDE;
+        float dx = Math.max(Math.max(bounds[offset + MIN_X] - x, x - bounds[offset + MAX_X]), 0);
+        float dy = Math.max(Math.max(bounds[offset + MIN_Y] - y, y - bounds[offset + MAX_Y]), 0);
+        return dx * dx + dy * dy;
+    }
+
+    private static long entry(float distance, int id, boolean item) {
+        return (long) Float.floatToIntBits(distance) << 32 | (id << 1 | (item ? 1 : 0)) & 0xFFFFFFFFL;
+    }
+
+    private static long[] push(long[] heap, int index, long entry) {
+        if (index == heap.length) {
+            heap = Arrays.copyOf(heap, index * 2);
+        }
+        while (index > 0) {
+            int parent = (index - 1) >>> 1;
+            if (heap[parent] <= entry) {
+                break;
+            }
+            heap[index] = heap[parent];
+            index = parent;
+        }
+        heap[index] = entry;
+        return heap;
+    }
+
+    private static void siftDown(long[] heap, int size) {
+        if (size == 0) {
+            return;
+        }
+        long entry = heap[0];
+        int index = 0;
+        while (true) {
+            int child = index * 2 + 1;
+            if (child >= size) {
+                break;
+            }
+            if (child + 1 < size && heap[child + 1] < heap[child]) {
+                child++;
+            }
+            if (entry <= heap[child]) {
+                break;
+            }
+            heap[index] = heap[child];
+            index = child;
+        }
+        heap[index] = entry;
+    }
+}
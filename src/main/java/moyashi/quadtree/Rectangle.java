@@ -51,4 +51,34 @@ public class Rectangle {
                 && other.minY < minY + height
                 && other.minY + other.height > minY;
     }
+
+    //Slab test, distance along a normalized direction at which the ray enters, 0 when it starts inside.
+    //Negative when it misses or only enters past maxDistance. A zero direction tests the point itself
+    public float rayDistance(float x, float y, float directionX, float directionY, float maxDistance) {
+        float near = 0, far = maxDistance;
+        if (directionX != 0) {
+            float first = (minX - x) / directionX;
+            float second = (minX + width - x) / directionX;
+            near = Math.max(near, Math.min(first, second));
+            far = Math.min(far, Math.max(first, second));
+        } else if (x < minX || x > minX + width) {
+            return -1;
+        }
+        if (directionY != 0) {
+            float first = (minY - y) / directionY;
+            float second = (minY + height - y) / directionY;
+            near = Math.max(near, Math.min(first, second));
+            far = Math.min(far, Math.max(first, second));
+        } else if (y < minY || y > minY + height) {
+            return -1;
+        }
+        return near <= far ? near : -1;
+    }
+
+    //0 when the point is inside
+    public float distanceSquared(float x, float y) {
+        float dx = Math.max(Math.max(minX - x, x - (minX + width)), 0);
+        float dy = Math.max(Math.max(minY - y, y - (minY + height)), 0);
+        return dx * dx + dy * dy;
+    }
 }
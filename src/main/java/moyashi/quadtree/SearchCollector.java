@@ -0,0 +1,38 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.util.List;
+
+/**
+ * Reusable consumer behind the list and count searches, appends to result when set and always counts.
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+class SearchCollector<T extends Leaf> implements IntersectionConsumer<T> {
+
+    private static final IntersectionConsumer<Leaf> STOP = item -> false;
+
+    public List<T> result;
+    public int count;
+
+    //Stops at the first item, used by anyIntersects
+    @SuppressWarnings("unchecked")
+    public static <T extends Leaf> IntersectionConsumer<T> stop() {
+        //Never looks at the item, so one instance serves every item type
+        return (IntersectionConsumer<T>) STOP;
+    }
+
+    @Override
+    public boolean accept(T item) {
+        if (result != null) {
+            result.add(item);
+        }
+        count++;
+        return true;
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public interface ShapeQuery {
+
+    //Used on item and node bounds. Nodes it returns false for are skipped with their subtree.
+    public boolean intersects(float minX, float minY, float width, float height);
+
+    //Used on node bounds, may return false when unsure. Nodes it returns true for have their subtree reported without further tests.
+    public boolean contains(float minX, float minY, float width, float height);
+}
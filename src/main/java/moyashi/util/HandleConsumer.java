@@ -0,0 +1,16 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public interface HandleConsumer {
+
+    //Return false to stop the search, no further handles are reported.
+    public boolean accept(int handle);
+}
@@ -0,0 +1,17 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ *
+ * @author Low Teck Wei
+ * @param <T>
+ */
+public interface IntersectionConsumer<T> {
+
+    //Return false to stop the search, no further items are reported.
+    public boolean accept(T item);
+}
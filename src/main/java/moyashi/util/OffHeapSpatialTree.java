@@ -0,0 +1,386 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.FloatBuffer;
+import java.nio.IntBuffer;
+import java.util.Arrays;
+
+/**
+ * {@link SpatialTree} for very large item counts with every node and leaf kept in direct buffers, so the garbage
+ * collector only ever sees a handful of objects. Items are int ids chosen by the caller, ideally dense from 0,
+ * and their bounds are passed in rather than read through {@link Leaf}. Each buffer is limited to 2GB.
+ *
+ * @author Low Teck Wei
+ */
+//This class is not thread-safe
+public class OffHeapSpatialTree {
+
+    private static final int NONE = -1, SELF = -1, ROOT = 0;
+    //Ints per node, children are regions consecutive nodes starting at CHILD
+    private static final int PARENT = 0, CHILD = 1, SIZE = 2, HEAD = 3, COUNT = 4, NODE_INTS = 5;
+    //Ints per leaf, leafs of a node form a doubly linked list starting at the node's HEAD
+    private static final int NODE = 0, NEXT = 1, PREVIOUS = 2, LEAF_INTS = 3;
+
+    private final int dimensions, regions, splitThreshold, mergeThreshold;
+
+    //Per node minimum then maximum, dimensions floats each
+    private FloatBuffer nodeBounds;
+    private IntBuffer nodeInts;
+    private int nodeCount;
+    //Released child blocks, first node id of each
+    private int[] freeBlocks = new int[16];
+    private int freeBlockCount;
+
+    private FloatBuffer leafBounds;
+    private IntBuffer leafInts;
+    private int leafCapacity;
+
+    public OffHeapSpatialTree(int dimensions, int splitThreshold, float[] minimum, float[] maximum) {
+        this(dimensions, splitThreshold, splitThreshold / 2, minimum, maximum);
+    }
+
+    //Split nodes collapse back once their subtree holds mergeThreshold leafs or fewer
+    public OffHeapSpatialTree(int dimensions, int splitThreshold, int mergeThreshold, float[] minimum, float[] maximum) {
+        assert mergeThreshold < splitThreshold;
+        assert minimum.length == dimensions && maximum.length == dimensions;
+
+        this.dimensions = dimensions;
+        this.splitThreshold = splitThreshold;
+        this.mergeThreshold = mergeThreshold;
+        regions = 1 << dimensions;
+
+        nodeBounds = floats(null, (regions + 1) * dimensions * 2);
+        nodeInts = ints(null, (regions + 1) * NODE_INTS);
+        leafBounds = floats(null, 0);
+        leafInts = ints(null, 0);
+
+        nodeCount = 1;
+        initNode(ROOT, NONE);
+        for (int d = 0; d < dimensions; d++) {
+            nodeBounds.put(d, minimum[d]);
+            nodeBounds.put(dimensions + d, maximum[d]);
+        }
+    }
+
+    //Also functions as an update
+    public void insert(int id, float[] minimum, float[] maximum) {
+        assert id >= 0 && minimum.length == dimensions && maximum.length == dimensions;
+
+        ensureCapacity(id + 1);
+        int offset = id * dimensions * 2;
+        for (int d = 0; d < dimensions; d++) {
+            leafBounds.put(offset + d, minimum[d]);
+            leafBounds.put(offset + dimensions + d, maximum[d]);
+        }
+
+        int node = leafInts.get(id * LEAF_INTS + NODE);
+        if (node == NONE) {
+            insert(ROOT, id);
+            return;
+        }
+
+        if (node == ROOT || contains(node, id)) {
+            int child = nodeInts.get(node * NODE_INTS + CHILD);
+            int index = child == NONE ? SELF : indexOf(node, id);
+            if (index != SELF) {
+                //Still counted by node and its ancestors, only the subtree gains it
+                unlink(id);
+                insert(child + index, id);
+            }
+            return;
+        }
+        delete(id);
+        insert(ROOT, id);
+    }
+
+    public void delete(int id) {
+        if (id >= leafCapacity) {
+            return;
+        }
+        int node = leafInts.get(id * LEAF_INTS + NODE);
+        if (node == NONE) {
+            return;
+        }
+
+        unlink(id);
+        int mergeNode = NONE;
+        for (; node != NONE; node = nodeInts.get(node * NODE_INTS + PARENT)) {
+            int size = nodeInts.get(node * NODE_INTS + SIZE) - 1;
+            nodeInts.put(node * NODE_INTS + SIZE, size);
+            if (nodeInts.get(node * NODE_INTS + CHILD) != NONE && size <= mergeThreshold) {
+                mergeNode = node;
+            }
+        }
+        if (mergeNode != NONE) {
+            merge(mergeNode);
+        }
+    }
+
+    public boolean contains(int id) {
+        return id < leafCapacity && leafInts.get(id * LEAF_INTS + NODE) != NONE;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(HandleConsumer consumer, float[] minimum, float[] maximum) {
+        assert minimum.length == dimensions && maximum.length == dimensions;
+
+        return search(ROOT, consumer, minimum, maximum);
+    }
+
+    public int count(float[] minimum, float[] maximum) {
+        int[] count = new int[1];
+        search(id -> {
+            count[0]++;
+            return true;
+        }, minimum, maximum);
+        return count[0];
+    }
+
+    public boolean anyIntersects(float[] minimum, float[] maximum) {
+        return !search(id -> false, minimum, maximum);
+    }
+
+    public int size() {
+        return nodeInts.get(ROOT * NODE_INTS + SIZE);
+    }
+
+    //Pre-allocates leaf storage for ids below the given capacity
+    public void ensureCapacity(int ids) {
+        if (leafCapacity < ids) {
+            int capacity = grow(leafCapacity, ids, Math.max(dimensions * 2, LEAF_INTS));
+            leafBounds = floats(leafBounds, (long) capacity * dimensions * 2);
+            leafInts = ints(leafInts, (long) capacity * LEAF_INTS);
+            for (int i = leafCapacity; i < capacity; i++) {
+                leafInts.put(i * LEAF_INTS + NODE, NONE);
+            }
+            leafCapacity = capacity;
+        }
+    }
+
+    private void insert(int node, int id) {
+        while (nodeInts.get(node * NODE_INTS + CHILD) != NONE) {
+            int index = indexOf(node, id);
+            if (index == SELF) {
+                break;
+            }
+            nodeInts.put(node * NODE_INTS + SIZE, nodeInts.get(node * NODE_INTS + SIZE) + 1);
+            node = nodeInts.get(node * NODE_INTS + CHILD) + index;
+        }
+
+        nodeInts.put(node * NODE_INTS + SIZE, nodeInts.get(node * NODE_INTS + SIZE) + 1);
+        link(node, id);
+
+        if (nodeInts.get(node * NODE_INTS + CHILD) == NONE && nodeInts.get(node * NODE_INTS + COUNT) >= splitThreshold) {
+            split(node);
+        }
+    }
+
+    private boolean search(int node, HandleConsumer consumer, float[] minimum, float[] maximum) {
+        for (int id = nodeInts.get(node * NODE_INTS + HEAD); id != NONE; id = leafInts.get(id * LEAF_INTS + NEXT)) {
+            if (overlaps(leafBounds, id, minimum, maximum) && !consumer.accept(id)) {
+                return false;
+            }
+        }
+
+        int child = nodeInts.get(node * NODE_INTS + CHILD);
+        if (child != NONE) {
+            for (int i = child; i < child + regions; i++) {
+                //Below the root every leaf lies inside its node's bounds
+                if (nodeInts.get(i * NODE_INTS + SIZE) > 0 && overlaps(nodeBounds, i, minimum, maximum)
+                        && !search(i, consumer, minimum, maximum)) {
+                    return false;
+                }
+            }
+        }
+        return true;
+    }
+
+    private boolean overlaps(FloatBuffer bounds, int index, float[] minimum, float[] maximum) {
+        int offset = index * dimensions * 2;
+        for (int d = 0; d < dimensions; d++) {
+            if (!(minimum[d] < bounds.get(offset + dimensions + d) && maximum[d] > bounds.get(offset + d))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean contains(int node, int id) {
+        int nodeOffset = node * dimensions * 2, leafOffset = id * dimensions * 2;
+        for (int d = 0; d < dimensions; d++) {
+            if (!(leafBounds.get(leafOffset + d) > nodeBounds.get(nodeOffset + d)
+                    && leafBounds.get(leafOffset + dimensions + d) < nodeBounds.get(nodeOffset + dimensions + d))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    //Same rule as SpatialTree: leafs only descend into subtrees that fully contain them
+    private int indexOf(int node, int id) {
+        if (!contains(node, id)) {
+            return SELF;
+        }
+        int nodeOffset = node * dimensions * 2, leafOffset = id * dimensions * 2;
+        int index = 0;
+        for (int d = 0; d < dimensions; d++) {
+            float middle = (nodeBounds.get(nodeOffset + d) + nodeBounds.get(nodeOffset + dimensions + d)) / 2;
+            if (leafBounds.get(leafOffset + dimensions + d) < middle) {
+                index = index * 2;
+            } else if (leafBounds.get(leafOffset + d) > middle) {
+                index = index * 2 + 1;
+            } else {
+                return SELF;
+            }
+        }
+        return index;
+    }
+
+    private void split(int node) {
+        int child = obtainBlock();
+        nodeInts.put(node * NODE_INTS + CHILD, child);
+        int nodeOffset = node * dimensions * 2;
+        for (int i = 0; i < regions; i++) {
+            initNode(child + i, node);
+            int offset = (child + i) * dimensions * 2;
+            for (int d = 0; d < dimensions; d++) {
+                float minimum = nodeBounds.get(nodeOffset + d), maximum = nodeBounds.get(nodeOffset + dimensions + d);
+                float middle = (minimum + maximum) / 2;
+                //Highest bit is the first dimension, as in indexOf
+                boolean upper = (i >> (dimensions - 1 - d) & 1) != 0;
+                nodeBounds.put(offset + d, upper ? middle : minimum);
+                nodeBounds.put(offset + dimensions + d, upper ? maximum : middle);
+            }
+        }
+
+        for (int id = nodeInts.get(node * NODE_INTS + HEAD); id != NONE;) {
+            int next = leafInts.get(id * LEAF_INTS + NEXT);
+            int index = indexOf(node, id);
+            if (index != SELF) {
+                unlink(id);
+                insert(child + index, id);
+            }
+            id = next;
+        }
+    }
+
+    //Pulls every leaf of the subtree into node and releases the child blocks
+    private void merge(int node) {
+        int child = nodeInts.get(node * NODE_INTS + CHILD);
+        nodeInts.put(node * NODE_INTS + CHILD, NONE);
+        collapseInto(child, node);
+    }
+
+    private void collapseInto(int child, int target) {
+        for (int i = child; i < child + regions; i++) {
+            for (int id = nodeInts.get(i * NODE_INTS + HEAD); id != NONE;) {
+                int next = leafInts.get(id * LEAF_INTS + NEXT);
+                link(target, id);
+                id = next;
+            }
+            int grandChild = nodeInts.get(i * NODE_INTS + CHILD);
+            if (grandChild != NONE) {
+                collapseInto(grandChild, target);
+            }
+        }
+        if (freeBlockCount == freeBlocks.length) {
+            freeBlocks = Arrays.copyOf(freeBlocks, freeBlockCount * 2);
+        }
+        freeBlocks[freeBlockCount++] = child;
+    }
+
+    //Pushes id to the front of node's list, does not change sizes
+    private void link(int node, int id) {
+        int head = nodeInts.get(node * NODE_INTS + HEAD);
+        leafInts.put(id * LEAF_INTS + NODE, node);
+        leafInts.put(id * LEAF_INTS + NEXT, head);
+        leafInts.put(id * LEAF_INTS + PREVIOUS, NONE);
+        if (head != NONE) {
+            leafInts.put(head * LEAF_INTS + PREVIOUS, id);
+        }
+        nodeInts.put(node * NODE_INTS + HEAD, id);
+        nodeInts.put(node * NODE_INTS + COUNT, nodeInts.get(node * NODE_INTS + COUNT) + 1);
+    }
+
+    //Removes id from its node's list, does not change sizes
+    private void unlink(int id) {
+        int node = leafInts.get(id * LEAF_INTS + NODE);
+        int next = leafInts.get(id * LEAF_INTS + NEXT);
+        int previous = leafInts.get(id * LEAF_INTS + PREVIOUS);
+        if (previous == NONE) {
+            nodeInts.put(node * NODE_INTS + HEAD, next);
+        } else {
+            leafInts.put(previous * LEAF_INTS + NEXT, next);
+        }
+        if (next != NONE) {
+            leafInts.put(next * LEAF_INTS + PREVIOUS, previous);
+        }
+        leafInts.put(id * LEAF_INTS + NODE, NONE);
+        nodeInts.put(node * NODE_INTS + COUNT, nodeInts.get(node * NODE_INTS + COUNT) - 1);
+    }
+
+    private int obtainBlock() {
+        if (freeBlockCount > 0) {
+            return freeBlocks[--freeBlockCount];
+        }
+        int block = nodeCount;
+        nodeCount += regions;
+        int capacity = nodeInts.capacity() / NODE_INTS;
+        if (capacity < nodeCount) {
+            capacity = grow(capacity, nodeCount, Math.max(dimensions * 2, NODE_INTS));
+            nodeBounds = floats(nodeBounds, (long) capacity * dimensions * 2);
+            nodeInts = ints(nodeInts, (long) capacity * NODE_INTS);
+        }
+        return block;
+    }
+
+    private void initNode(int node, int parent) {
+        int offset = node * NODE_INTS;
+        nodeInts.put(offset + PARENT, parent);
+        nodeInts.put(offset + CHILD, NONE);
+        nodeInts.put(offset + SIZE, 0);
+        nodeInts.put(offset + HEAD, NONE);
+        nodeInts.put(offset + COUNT, 0);
+    }
+
+    //Doubles capacity, or more if needed, but no further than a buffer of entries this many values wide can hold
+    private static int grow(int capacity, int needed, int values) {
+        return (int) Math.max(needed, Math.min(capacity * 2L, Integer.MAX_VALUE / (values * 4L)));
+    }
+
+    //Direct buffer of the given capacity holding a copy of previous, which may be null
+    private static FloatBuffer floats(FloatBuffer previous, long capacity) {
+        FloatBuffer buffer = ByteBuffer.allocateDirect(bytes(capacity, Float.BYTES)).order(ByteOrder.nativeOrder()).asFloatBuffer();
+        if (previous != null) {
+            previous.clear();
+            buffer.put(previous);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    private static IntBuffer ints(IntBuffer previous, long capacity) {
+        IntBuffer buffer = ByteBuffer.allocateDirect(bytes(capacity, Integer.BYTES)).order(ByteOrder.nativeOrder()).asIntBuffer();
+        if (previous != null) {
+            previous.clear();
+            buffer.put(previous);
+            buffer.clear();
+        }
+        return buffer;
+    }
+
+    //A direct buffer is indexed by int
+    private static int bytes(long capacity, int size) {
+        long bytes = capacity * size;
+        if (bytes > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("Direct buffer of " + bytes + " bytes exceeds " + Integer.MAX_VALUE);
+        }
+        return (int) bytes;
+    }
+}
@@ -0,0 +1,19 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public interface ShapeQuery {
+
+    //Used on leaf and node bounds. Nodes it returns false for are skipped with their subtree.
+    public boolean intersects(float[] minimum, float[] maximum);
+
+    //Used on node bounds, may return false when unsure. Nodes it returns true for have their subtree reported without further tests.
+    public boolean contains(float[] minimum, float[] maximum);
+}
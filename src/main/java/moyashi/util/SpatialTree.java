@@ -7,9 +7,13 @@ package moyashi.util;
 
 import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
 import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Iterator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 
 /**
  *
@@ -18,24 +22,52 @@ import java.util.Iterator;
  */
 public class SpatialTree<T extends Leaf> {
 
-    private static final int SELF = -1;
+    private static final int SELF = -1, NO_HANDLE = -1;
 
     private final int dimensions;
     private final ArrayDeque<TreeNode<T>[]> treeNodes = new ArrayDeque<>();
     private final ArrayDeque<LeafNode<T>> leafNodes = new ArrayDeque<>();
+    //Nodes ever created, the root included. Pools are drained before creating more, so this is the most ever in use
+    private int treeNodeHighWaterMark = 1, leafNodeHighWaterMark;
     private final int regions;
     private final HashMap<T, LeafNode<T>> leafs = new HashMap<>();
-    private final int splitThreshold;
-    private final float[] splitMinimumBuffer, splitMaximumBuffer;
+    private final ArrayList<LeafNode<T>> dirtyLeafs = new ArrayList<>();
+    //Leafs added through register, indexed by handle and never in leafs
+    private LeafNode<T>[] handles = newLeafNodes(0);
+    private int handleCount;
+    private int[] freeHandles = new int[0];
+    private int freeHandleCount;
+    private final int splitThreshold, mergeThreshold;
+    //Subtree bounds are grown by this factor around their centre, 1 is a regular tree
+    private float looseness = 1;
+    //Null unless enabled
+    private TreeStats stats;
+    private final float[] splitMinimumBuffer, splitMaximumBuffer, bufferDirection;
     private final TreeNode<T> treeNode;
+    private final Collector<T> bufferCollector = new Collector<>();
+    private final ItemConsumer<T> bufferItemConsumer = new ItemConsumer<>();
+    private final HandleLeafConsumer<T> bufferHandleConsumer = new HandleLeafConsumer<>();
+    private final PriorityQueue<NearestEntry<T>> bufferQueue = new PriorityQueue<>();
+    private final ArrayList<NearestEntry<T>> bufferEntries = new ArrayList<>();
+    private int bufferEntryCount;
+    private T bufferNearest;
 
     public SpatialTree(int dimensions, int splitThreshold) {
+        this(dimensions, splitThreshold, splitThreshold / 2);
+    }
+
+    //Split nodes collapse back once their subtree holds mergeThreshold leafs or fewer
+    public SpatialTree(int dimensions, int splitThreshold, int mergeThreshold) {
+        assert mergeThreshold < splitThreshold;
+
         this.dimensions = dimensions;
         this.splitThreshold = splitThreshold;
+        this.mergeThreshold = mergeThreshold;
 
         regions = (int) Math.pow(2, dimensions);
         splitMinimumBuffer = new float[dimensions];
         splitMaximumBuffer = new float[dimensions];
+        bufferDirection = new float[dimensions];
 
         treeNode = new TreeNode<>(this);
     }
@@ -49,10 +81,18 @@ public class SpatialTree<T extends Leaf> {
             treeNodes.addLast(treeNode.subTrees);
         }
         treeNode.subTrees = null;
-        treeNode.leafs.clear();
+        treeNode.clearLeafs();
+        treeNode.size = 0;
         treeNode.bounds.setBounds(minimum, maximum);
+        treeNode.updateLooseBounds();
 
         leafs.values().forEach(treeNode::insert);
+        for (int i = 0; i < handleCount; i++) {
+            if (handles[i] != null) {
+                handles[i].parent = null;
+                treeNode.insert(handles[i]);
+            }
+        }
     }
 
     public void insert(T leaf) {
@@ -65,15 +105,24 @@ public class SpatialTree<T extends Leaf> {
         TreeNode<T> insertionPoint = treeNode;
 
         if (leafNode.parent != null) {
-            if (leafNode.parent.bounds.contains(leafNode.bounds)) {
-                int index = leafNode.parent.indexOf(leafNode);
+            TreeNode<T> parent = leafNode.parent;
+            if (parent.looseBounds.contains(leafNode.bounds)) {
+                int index = parent.subTrees == null ? SELF : parent.indexOf(leafNode);
                 if (index == SELF) {
+                    if (stats != null) {
+                        stats.reinsertAvoided();
+                    }
                     return;
-                } else {
-                    insertionPoint = leafNode.parent.subTrees[index];
                 }
+                //Still counted by parent and its ancestors, only the subtree gains it
+                parent.removeLeaf(leafNode);
+                insertionPoint = parent.subTrees[index];
+            } else {
+                if (stats != null) {
+                    stats.relocate();
+                }
+                parent.delete(leafNode);
             }
-            leafNode.parent.leafs.remove(leafNode);
         }
 
         insertionPoint.insert(leafNode);
@@ -82,15 +131,311 @@ public class SpatialTree<T extends Leaf> {
     public void delete(T leaf) {
         LeafNode<T> leafNode = leafs.remove(leaf);
         if (leafNode != null) {
-            if (leafNode.parent != null) {
-                leafNode.parent.delete(leafNode);
+            release(leafNode);
+        }
+    }
+
+    //Adds a leaf that is then only moved through update(handle, ...), skipping the leaf lookup and its Leaf methods.
+    //It is still reported by the leaf searches. Returns the handle, reused after delete.
+    public int register(T leaf, float[] minimum, float[] maximum) {
+        assert leaf != null;
+
+        int handle;
+        if (freeHandleCount > 0) {
+            handle = freeHandles[--freeHandleCount];
+        } else {
+            if (handleCount == handles.length) {
+                handles = Arrays.copyOf(handles, Math.max(16, handleCount * 2));
             }
-            leafNodes.addLast(leafNode);
+            handle = handleCount++;
         }
+
+        LeafNode<T> leafNode = handles[handle] = obtainLeafNode();
+        leafNode.leaf = leaf;
+        leafNode.handle = handle;
+        leafNode.bounds.setBounds(minimum, maximum);
+        insert(leafNode);
+        return handle;
+    }
+
+    public void update(int handle, float[] minimum, float[] maximum) {
+        LeafNode<T> leafNode = handles[handle];
+        assert leafNode != null;
+
+        leafNode.bounds.setBounds(minimum, maximum);
+        insert(leafNode);
+    }
+
+    public void delete(int handle) {
+        LeafNode<T> leafNode = handles[handle];
+        assert leafNode != null;
+
+        handles[handle] = null;
+        if (freeHandleCount == freeHandles.length) {
+            freeHandles = Arrays.copyOf(freeHandles, Math.max(16, freeHandleCount * 2));
+        }
+        freeHandles[freeHandleCount++] = handle;
+        release(leafNode);
     }
 
     public void search(ArrayList<T> output, float[] minimum, float[] maximum) {
-        treeNode.search(output, minimum, maximum);
+        bufferCollector.output = output;
+        search(bufferCollector, minimum, maximum);
+        bufferCollector.output = null;
+    }
+
+    //Returns false if the consumer stopped the search early
+    public boolean search(IntersectionConsumer<T> consumer, float[] minimum, float[] maximum) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = treeNode.search(bufferItemConsumer, minimum, maximum);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    //Reports the handles of registered leafs only, leafs added through insert are skipped
+    public boolean searchHandles(HandleConsumer consumer, float[] minimum, float[] maximum) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferHandleConsumer.consumer = consumer;
+        boolean completed = treeNode.search(bufferHandleConsumer, minimum, maximum);
+        bufferHandleConsumer.consumer = null;
+        return completed;
+    }
+
+    public void searchContained(ArrayList<T> output, float[] minimum, float[] maximum) {
+        bufferCollector.output = output;
+        searchContained(bufferCollector, minimum, maximum);
+        bufferCollector.output = null;
+    }
+
+    //Reports only leafs lying entirely inside the window, as tested by Bounds.contains
+    public boolean searchContained(IntersectionConsumer<T> consumer, float[] minimum, float[] maximum) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = treeNode.collectContained(bufferItemConsumer, minimum, maximum);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    public void search(ArrayList<T> output, ShapeQuery shape) {
+        bufferCollector.output = output;
+        search(bufferCollector, shape);
+        bufferCollector.output = null;
+    }
+
+    //Reports leafs whose bounds the shape intersects. Nodes outside the shape are skipped, nodes inside it
+    //have their whole subtree reported without testing each leaf. Returns false if the consumer stopped early
+    public boolean search(IntersectionConsumer<T> consumer, ShapeQuery shape) {
+        if (stats != null) {
+            stats.search();
+        }
+        bufferItemConsumer.consumer = consumer;
+        boolean completed = treeNode.searchShape(bufferItemConsumer, shape);
+        bufferItemConsumer.consumer = null;
+        return completed;
+    }
+
+    public int count(ShapeQuery shape) {
+        bufferCollector.count = 0;
+        search(bufferCollector, shape);
+        return bufferCollector.count;
+    }
+
+    public int count(float[] minimum, float[] maximum) {
+        bufferCollector.count = 0;
+        search(bufferCollector, minimum, maximum);
+        return bufferCollector.count;
+    }
+
+    public boolean anyIntersects(float[] minimum, float[] maximum) {
+        return !search(Collector.stop(), minimum, maximum);
+    }
+
+    public int nearest(float[] point, int k, DistanceConsumer<T> consumer) {
+        return nearest(point, k, Float.POSITIVE_INFINITY, null, consumer);
+    }
+
+    //Reports up to k leafs nearest to point within maxDistance, nearest first, filter may be null.
+    //Best-first search over node and leaf bounds, returns the number of leafs reported.
+    public int nearest(float[] point, int k, float maxDistance, Predicate<T> filter, DistanceConsumer<T> consumer) {
+        assert point.length == dimensions;
+
+        float maxDistanceSquared = maxDistance * maxDistance;
+        int reported = 0;
+        if (stats != null) {
+            stats.search();
+        }
+
+        //Root is entered unconditionally, it may hold leafs outside of its bounds
+        bufferQueue.add(obtainEntry(0, treeNode, null));
+        while (reported < k && !bufferQueue.isEmpty()) {
+            NearestEntry<T> entry = bufferQueue.poll();
+            if (entry.leafNode != null) {
+                reported++;
+                if (!consumer.accept(entry.leafNode.leaf, (float) Math.sqrt(entry.distance))) {
+                    break;
+                }
+                continue;
+            }
+
+            TreeNode<T> node = entry.treeNode;
+            if (stats != null) {
+                stats.visit(node.leafCount);
+            }
+            for (int i = 0; i < node.leafCount; i++) {
+                LeafNode<T> leafNode = node.leafs[i];
+                float distance = leafNode.bounds.distanceSquared(point);
+                if (distance <= maxDistanceSquared && (filter == null || filter.test(leafNode.leaf))) {
+                    bufferQueue.add(obtainEntry(distance, null, leafNode));
+                }
+            }
+            if (node.subTrees != null) {
+                for (TreeNode<T> subTree : node.subTrees) {
+                    float distance = subTree.looseBounds.distanceSquared(point);
+                    if (subTree.size > 0 && distance <= maxDistanceSquared) {
+                        bufferQueue.add(obtainEntry(distance, subTree, null));
+                    }
+                }
+            }
+        }
+
+        releaseEntries();
+        return reported;
+    }
+
+    public int raycast(float[] origin, float[] direction, float maxDistance, DistanceConsumer<T> consumer) {
+        return raycast(origin, direction, maxDistance, null, consumer);
+    }
+
+    //Reports leafs whose bounds the ray crosses within maxDistance, in the order the ray enters them,
+    //with the distance it enters at, 0 for leafs it starts in. Nodes are visited front to back, filter may be null.
+    public int raycast(float[] origin, float[] direction, float maxDistance, Predicate<T> filter, DistanceConsumer<T> consumer) {
+        assert origin.length == dimensions && direction.length == dimensions;
+
+        float length = 0;
+        for (int i = 0; i < dimensions; i++) {
+            length += direction[i] * direction[i];
+        }
+        length = (float) Math.sqrt(length);
+        for (int i = 0; i < dimensions; i++) {
+            bufferDirection[i] = length > 0 ? direction[i] / length : 0;
+        }
+        int reported = 0;
+        if (stats != null) {
+            stats.search();
+        }
+
+        //Root is entered unconditionally, it may hold leafs outside of its bounds
+        bufferQueue.add(obtainEntry(0, treeNode, null));
+        while (!bufferQueue.isEmpty()) {
+            NearestEntry<T> entry = bufferQueue.poll();
+            if (entry.leafNode != null) {
+                reported++;
+                if (!consumer.accept(entry.leafNode.leaf, entry.distance)) {
+                    break;
+                }
+                continue;
+            }
+
+            TreeNode<T> node = entry.treeNode;
+            if (stats != null) {
+                stats.visit(node.leafCount);
+            }
+            for (int i = 0; i < node.leafCount; i++) {
+                LeafNode<T> leafNode = node.leafs[i];
+                float distance = leafNode.bounds.rayDistance(origin, bufferDirection, maxDistance);
+                if (distance >= 0 && (filter == null || filter.test(leafNode.leaf))) {
+                    bufferQueue.add(obtainEntry(distance, null, leafNode));
+                }
+            }
+            if (node.subTrees != null) {
+                for (TreeNode<T> subTree : node.subTrees) {
+                    float distance = subTree.looseBounds.rayDistance(origin, bufferDirection, maxDistance);
+                    if (subTree.size > 0 && distance >= 0) {
+                        bufferQueue.add(obtainEntry(distance, subTree, null));
+                    }
+                }
+            }
+        }
+
+        releaseEntries();
+        return reported;
+    }
+
+    //First leaf the ray hits within maxDistance, null if there is none
+    public T raycast(float[] origin, float[] direction, float maxDistance) {
+        raycast(origin, direction, maxDistance, null, (leaf, distance) -> {
+            bufferNearest = leaf;
+            return false;
+        });
+        T hit = bufferNearest;
+        bufferNearest = null;
+        return hit;
+    }
+
+    //Raycast from one point that ends at the other
+    public int segment(float[] from, float[] to, DistanceConsumer<T> consumer) {
+        assert from.length == dimensions && to.length == dimensions;
+
+        //Normalized in place by raycast
+        float length = 0;
+        for (int i = 0; i < dimensions; i++) {
+            bufferDirection[i] = to[i] - from[i];
+            length += bufferDirection[i] * bufferDirection[i];
+        }
+        return raycast(from, bufferDirection, (float) Math.sqrt(length), null, consumer);
+    }
+
+    //Nearest leaf within maxDistance, null if there is none
+    public T nearest(float[] point, float maxDistance) {
+        nearest(point, 1, maxDistance, null, (leaf, distance) -> {
+            bufferNearest = leaf;
+            return true;
+        });
+        T nearest = bufferNearest;
+        bufferNearest = null;
+        return nearest;
+    }
+
+    //Leafs are pushed to the deepest node whose bounds, grown by looseness, contain them. Reinserts all leafs.
+    //Leafs straddling midlines then no longer pile up in the upper nodes, at the cost of overlapping siblings.
+    public void setLooseness(float looseness) {
+        assert looseness >= 1;
+
+        this.looseness = looseness;
+        resize(treeNode.bounds.minimum, treeNode.bounds.maximum);
+    }
+
+    public float getLooseness() {
+        return looseness;
+    }
+
+    //Starts reporting searches, splits, merges and relocations into stats, null turns it off again
+    public void setStats(TreeStats stats) {
+        this.stats = stats;
+    }
+
+    public TreeStats getStats() {
+        return stats;
+    }
+
+    //Walks the tree for its shape, also published to the stats for JMX when enabled
+    public TreeStatsSnapshot snapshotStats() {
+        int depth = treeNode.maxDepth(0) + 1;
+        int[] itemsPerDepth = new int[depth];
+        int[] nodesPerDepth = new int[depth];
+        treeNode.countDepths(itemsPerDepth, nodesPerDepth, 0);
+        TreeStatsSnapshot snapshot = new TreeStatsSnapshot(stats, itemsPerDepth, nodesPerDepth, treeNodeHighWaterMark, leafNodeHighWaterMark);
+        if (stats != null) {
+            stats.publish(snapshot);
+        }
+        return snapshot;
     }
 
     public void visit(SpatialTreeVisitor<T> visitor) {
@@ -106,19 +451,56 @@ public class SpatialTree<T extends Leaf> {
         }
     }
 
+    //Flags an inserted leaf as moved, it is updated by the next updateDirty
+    public void markDirty(T leaf) {
+        LeafNode<T> leafNode = leafs.get(leaf);
+        if (leafNode != null && !leafNode.dirty) {
+            leafNode.dirty = true;
+            dirtyLeafs.add(leafNode);
+        }
+    }
+
+    //Updates only the given leafs
+    public void update(Collection<T> leafs) {
+        leafs.forEach(this::insert);
+    }
+
+    //Updates only the leafs flagged by markDirty since the last call
+    public void updateDirty() {
+        for (LeafNode<T> leafNode : dirtyLeafs) {
+            if (leafNode.dirty) {
+                leafNode.dirty = false;
+                leafNode.updateNode();
+                insert(leafNode);
+            }
+        }
+        dirtyLeafs.clear();
+    }
+
+    //Reads bounds of all non-static leafs and finds the ones that left their node on the ForkJoin common pool.
+    //Leafs must not be modified while this runs, relocation is then applied on the calling thread.
+    public void updateParallel() {
+        List<LeafNode<T>> moved = leafs.values().parallelStream()
+                .filter(leafNode -> !leafNode.leaf.isStatic() && leafNode.updateMoved())
+                .collect(Collectors.toList());
+        moved.forEach(this::insert);
+    }
+
     public int size() {
-        assert treeNode.size == leafs.size();
+        int size = leafs.size() + handleCount - freeHandleCount;
+        assert treeNode.size == size;
 
-        return leafs.size();
+        return size;
     }
 
     private TreeNode<T>[] obtainTreeNodes() {
         TreeNode<T>[] treeNodes;
         if (this.treeNodes.isEmpty()) {
-            treeNodes = new TreeNode[regions];
+            treeNodes = newTreeNodes(regions);
             for (int i = 0; i < treeNodes.length; i++) {
                 treeNodes[i] = new TreeNode<>(this);
             }
+            treeNodeHighWaterMark += regions;
         } else {
             treeNodes = this.treeNodes.removeFirst();
             for (TreeNode<T> treeNode : treeNodes) {
@@ -126,13 +508,60 @@ public class SpatialTree<T extends Leaf> {
                     this.treeNodes.addLast(treeNode.subTrees);
                 }
                 treeNode.subTrees = null;
+                treeNode.clearLeafs();
             }
         }
         return treeNodes;
     }
 
+    @SuppressWarnings("unchecked")
+    private static <T extends Leaf> TreeNode<T>[] newTreeNodes(int length) {
+        return (TreeNode<T>[]) new TreeNode<?>[length];
+    }
+
+    @SuppressWarnings("unchecked")
+    private static <T extends Leaf> LeafNode<T>[] newLeafNodes(int length) {
+        return (LeafNode<T>[]) new LeafNode<?>[length];
+    }
+
+    private NearestEntry<T> obtainEntry(float distance, TreeNode<T> treeNode, LeafNode<T> leafNode) {
+        if (bufferEntryCount == bufferEntries.size()) {
+            bufferEntries.add(new NearestEntry<>());
+        }
+        NearestEntry<T> entry = bufferEntries.get(bufferEntryCount++);
+        entry.distance = distance;
+        entry.treeNode = treeNode;
+        entry.leafNode = leafNode;
+        return entry;
+    }
+
+    private void releaseEntries() {
+        bufferQueue.clear();
+        for (int i = 0; i < bufferEntryCount; i++) {
+            NearestEntry<T> entry = bufferEntries.get(i);
+            entry.treeNode = null;
+            entry.leafNode = null;
+        }
+        bufferEntryCount = 0;
+    }
+
+    private void release(LeafNode<T> leafNode) {
+        if (leafNode.parent != null) {
+            leafNode.parent.delete(leafNode);
+        }
+        leafNode.parent = null;
+        leafNode.leaf = null;
+        leafNode.dirty = false;
+        leafNode.handle = NO_HANDLE;
+        leafNodes.addLast(leafNode);
+    }
+
     private LeafNode<T> obtainLeafNode() {
-        return leafNodes.isEmpty() ? new LeafNode<>(this) : leafNodes.removeFirst();
+        if (leafNodes.isEmpty()) {
+            leafNodeHighWaterMark++;
+            return new LeafNode<>(this);
+        }
+        return leafNodes.removeFirst();
     }
 
     private LeafNode<T> getLeafNode(T leaf) {
@@ -144,12 +573,79 @@ public class SpatialTree<T extends Leaf> {
         return leafNode;
     }
 
+    //Appends to output when set, always counts
+    private static class Collector<T> implements IntersectionConsumer<T> {
+
+        private static final IntersectionConsumer<Object> STOP = item -> false;
+
+        public ArrayList<T> output;
+        public int count;
+
+        //Stops at the first item, used by anyIntersects
+        @SuppressWarnings("unchecked")
+        public static <T> IntersectionConsumer<T> stop() {
+            return (IntersectionConsumer<T>) STOP;
+        }
+
+        @Override
+        public boolean accept(T item) {
+            if (output != null) {
+                output.add(item);
+            }
+            count++;
+            return true;
+        }
+    }
+
+    //What search reports each overlapping leaf node to
+    private interface LeafConsumer<T extends Leaf> {
+
+        public boolean accept(LeafNode<T> leafNode);
+    }
+
+    private static class ItemConsumer<T extends Leaf> implements LeafConsumer<T> {
+
+        public IntersectionConsumer<T> consumer;
+
+        @Override
+        public boolean accept(LeafNode<T> leafNode) {
+            return consumer.accept(leafNode.leaf);
+        }
+    }
+
+    private static class HandleLeafConsumer<T extends Leaf> implements LeafConsumer<T> {
+
+        public HandleConsumer consumer;
+
+        @Override
+        public boolean accept(LeafNode<T> leafNode) {
+            return leafNode.handle == NO_HANDLE || consumer.accept(leafNode.handle);
+        }
+    }
+
+    //Either a tree node or a leaf node queued by its squared distance
+    private static class NearestEntry<T extends Leaf> implements Comparable<NearestEntry<T>> {
+
+        public float distance;
+        public TreeNode<T> treeNode;
+        public LeafNode<T> leafNode;
+
+        @Override
+        public int compareTo(NearestEntry<T> other) {
+            return Float.compare(distance, other.distance);
+        }
+    }
+
     private static class LeafNode<T extends Leaf> {
 
         public final SpatialTree<T> root;
         public final Bounds bounds;
         public TreeNode<T> parent;
         public T leaf;
+        public boolean dirty;
+        public int handle = NO_HANDLE;
+        //Index in its parent's leafs
+        public int slot;
 
         public LeafNode(SpatialTree<T> root) {
             this.root = root;
@@ -165,6 +661,15 @@ public class SpatialTree<T extends Leaf> {
                 }
             }
         }
+
+        //Reads the leaf's bounds, returns true if it no longer belongs to its node. Only writes to this leaf node.
+        public boolean updateMoved() {
+            updateNode();
+            if (parent.parent != null && !parent.looseBounds.contains(bounds)) {
+                return true;
+            }
+            return parent.subTrees != null && parent.indexOf(this) != SELF;
+        }
     }
 
     private static class Bounds {
@@ -202,6 +707,47 @@ public class SpatialTree<T extends Leaf> {
             return true;
         }
 
+        //Strictly inside the window, the reverse of contains
+        public boolean within(float[] minimum, float[] maximum) {
+            assert minimum.length == dimensions && maximum.length == dimensions;
+
+            for (int i = 0; i < dimensions; i++) {
+                if (!(this.minimum[i] > minimum[i] && this.maximum[i] < maximum[i])) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        //0 when the point is inside
+        public float distanceSquared(float[] point) {
+            assert point.length == dimensions;
+
+            float distance = 0;
+            for (int i = 0; i < dimensions; i++) {
+                float delta = Math.max(Math.max(minimum[i] - point[i], point[i] - maximum[i]), 0);
+                distance += delta * delta;
+            }
+            return distance;
+        }
+
+        //Slab test, distance along a normalized direction at which the ray enters, 0 when it starts inside.
+        //Negative when it misses or only enters past maxDistance
+        public float rayDistance(float[] origin, float[] direction, float maxDistance) {
+            float near = 0, far = maxDistance;
+            for (int i = 0; i < dimensions; i++) {
+                if (direction[i] != 0) {
+                    float first = (minimum[i] - origin[i]) / direction[i];
+                    float second = (maximum[i] - origin[i]) / direction[i];
+                    near = Math.max(near, Math.min(first, second));
+                    far = Math.min(far, Math.max(first, second));
+                } else if (origin[i] < minimum[i] || origin[i] > maximum[i]) {
+                    return -1;
+                }
+            }
+            return near <= far ? near : -1;
+        }
+
         public boolean overlaps(Bounds bounds) {
             return overlaps(bounds.minimum, bounds.maximum);
         }
@@ -223,49 +769,197 @@ public class SpatialTree<T extends Leaf> {
         public TreeNode<T> parent;
         public final SpatialTree<T> root;
         public final Bounds bounds;
-        public TreeNode[] subTrees;
-        public final HashSet<LeafNode<T>> leafs;
+        //Below the root every leaf lies inside looseBounds, the same as bounds unless the tree is loose
+        public final Bounds looseBounds;
+        public TreeNode<T>[] subTrees;
+        //Dense, [0, leafCount) are set. Removal moves the last leaf into the freed slot
+        public LeafNode<T>[] leafs;
+        public int leafCount;
         public int size;
 
         public TreeNode(SpatialTree<T> root) {
             this.root = root;
             bounds = new Bounds(root.dimensions);
-            leafs = new HashSet<>(root.splitThreshold);
+            looseBounds = new Bounds(root.dimensions);
+            leafs = newLeafNodes(root.splitThreshold);
+        }
+
+        public void addLeaf(LeafNode<T> leafNode) {
+            if (leafCount == leafs.length) {
+                leafs = Arrays.copyOf(leafs, Math.max(1, leafCount * 2));
+            }
+            leafNode.slot = leafCount;
+            leafs[leafCount++] = leafNode;
+        }
+
+        public void removeLeaf(LeafNode<T> leafNode) {
+            assert leafs[leafNode.slot] == leafNode;
+
+            LeafNode<T> last = leafs[--leafCount];
+            leafs[leafNode.slot] = last;
+            last.slot = leafNode.slot;
+            leafs[leafCount] = null;
+        }
+
+        public void clearLeafs() {
+            Arrays.fill(leafs, 0, leafCount, null);
+            leafCount = 0;
         }
 
-        public void search(ArrayList<T> output, float[] minimum, float[] maximum) {
+        public boolean search(LeafConsumer<T> consumer, float[] minimum, float[] maximum) {
+            //Siblings overlap, so there is no single subtree to descend into
+            if (root.looseness != 1) {
+                return collectAll(consumer, minimum, maximum);
+            }
+
             TreeNode<T> treeNode = this;
             while (treeNode.subTrees != null) {
                 if (treeNode.size == 0) {
-                    return;
+                    return true;
                 }
                 int index = treeNode.indexOf(minimum, maximum);
                 if (index == SELF) {
-                    treeNode.collectAll(output, minimum, maximum);
-                    return;
-                } else {
-                    treeNode.collectSelf(output, minimum, maximum);
-                    treeNode = subTrees[index];
+                    return treeNode.collectAll(consumer, minimum, maximum);
+                } else if (!treeNode.collectSelf(consumer, minimum, maximum)) {
+                    return false;
                 }
+                treeNode = treeNode.subTrees[index];
             }
-            collectSelf(output, minimum, maximum);
+            return treeNode.collectSelf(consumer, minimum, maximum);
         }
 
-        private void collectAll(ArrayList<T> output, float[] minimum, float[] maximum) {
-            collectSelf(output, minimum, maximum);
+        //Root is searched whatever its bounds, it may hold leafs outside of them
+        private boolean searchShape(LeafConsumer<T> consumer, ShapeQuery shape) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (shape.intersects(leafNode.bounds.minimum, leafNode.bounds.maximum) && !consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
             if (subTrees != null) {
                 for (TreeNode<T> subTree : subTrees) {
-                    if (subTree.size > 0) {
-                        subTree.collectAll(output, minimum, maximum);
+                    Bounds bounds = subTree.looseBounds;
+                    if (subTree.size == 0 || !shape.intersects(bounds.minimum, bounds.maximum)) {
+                        continue;
+                    }
+                    //Below the root every leaf lies inside its node's loose bounds
+                    if (shape.contains(bounds.minimum, bounds.maximum)) {
+                        if (!subTree.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!subTree.searchShape(consumer, shape)) {
+                        return false;
                     }
                 }
             }
+            return true;
         }
 
-        private void collectSelf(ArrayList<T> output, float[] minimum, float[] maximum) {
-            for (LeafNode<T> leafNode : leafs) {
-                if (leafNode.bounds.overlaps(minimum, maximum)) {
-                    output.add(leafNode.leaf);
+        //Every leaf of the subtree, without any test
+        private boolean reportAll(LeafConsumer<T> consumer) {
+            //A visit, but no item is compared
+            if (root.stats != null) {
+                root.stats.visit(0);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (!consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    if (subTree.size > 0 && !subTree.reportAll(consumer)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        //Subtrees missing the window are skipped and those inside it are reported whole,
+        //below the root every leaf lies inside its node's loose bounds
+        private boolean collectAll(LeafConsumer<T> consumer, float[] minimum, float[] maximum) {
+            if (!collectSelf(consumer, minimum, maximum)) {
+                return false;
+            }
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    if (subTree.size == 0 || !subTree.looseBounds.overlaps(minimum, maximum)) {
+                        continue;
+                    }
+                    if (subTree.looseBounds.within(minimum, maximum)) {
+                        if (!subTree.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!subTree.collectAll(consumer, minimum, maximum)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        //Same walk as collectAll, only reporting leafs inside the window
+        private boolean collectContained(LeafConsumer<T> consumer, float[] minimum, float[] maximum) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (leafNode.bounds.within(minimum, maximum) && !consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    if (subTree.size == 0 || !subTree.looseBounds.overlaps(minimum, maximum)) {
+                        continue;
+                    }
+                    if (subTree.looseBounds.within(minimum, maximum)) {
+                        if (!subTree.reportAll(consumer)) {
+                            return false;
+                        }
+                    } else if (!subTree.collectContained(consumer, minimum, maximum)) {
+                        return false;
+                    }
+                }
+            }
+            return true;
+        }
+
+        private boolean collectSelf(LeafConsumer<T> consumer, float[] minimum, float[] maximum) {
+            if (root.stats != null) {
+                root.stats.visit(leafCount);
+            }
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                if (leafNode.bounds.overlaps(minimum, maximum) && !consumer.accept(leafNode)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        public int maxDepth(int depth) {
+            int maxDepth = depth;
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    maxDepth = Math.max(maxDepth, subTree.maxDepth(depth + 1));
+                }
+            }
+            return maxDepth;
+        }
+
+        public void countDepths(int[] itemsPerDepth, int[] nodesPerDepth, int depth) {
+            itemsPerDepth[depth] += leafCount;
+            nodesPerDepth[depth]++;
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    subTree.countDepths(itemsPerDepth, nodesPerDepth, depth + 1);
                 }
             }
         }
@@ -273,7 +967,8 @@ public class SpatialTree<T extends Leaf> {
         public void visit(SpatialTreeVisitor<T> visitor) {
             if (size > 0) {
                 visitor.visitTree(bounds.minimum, bounds.maximum);
-                for (LeafNode<T> leafNode : leafs) {
+                for (int i = 0; i < leafCount; i++) {
+                    LeafNode<T> leafNode = leafs[i];
                     visitor.visitLeaf(leafNode.leaf, leafNode.bounds.minimum, leafNode.bounds.maximum);
                 }
                 if (subTrees != null) {
@@ -285,73 +980,182 @@ public class SpatialTree<T extends Leaf> {
         }
 
         public void insert(LeafNode<T> leafNode) {
-            if (subTrees != null) {
-                int index = indexOf(leafNode);
-                if (index != SELF) {
-                    subTrees[index].insert(leafNode);
-                    return;
+            TreeNode<T> treeNode = this;
+            while (treeNode.subTrees != null) {
+                int index = treeNode.indexOf(leafNode);
+                if (index == SELF) {
+                    break;
                 }
+                treeNode.size++;
+                treeNode = treeNode.subTrees[index];
             }
 
-            leafs.add(leafNode);
-            leafNode.parent = this;
-            size++;
+            treeNode.addLeaf(leafNode);
+            leafNode.parent = treeNode;
+            treeNode.size++;
 
-            if (subTrees == null && leafs.size() >= root.splitThreshold) {
-                split();
-                distribute();
+            if (treeNode.subTrees == null && treeNode.leafCount >= root.splitThreshold) {
+                treeNode.split();
+                treeNode.distribute();
             }
         }
 
+        //Collapses the highest ancestor that fell to mergeThreshold
         public void delete(LeafNode<T> leafNode) {
-            if (leafs.remove(leafNode)) {
+            if (leafNode.slot < leafCount && leafs[leafNode.slot] == leafNode) {
+                removeLeaf(leafNode);
                 TreeNode<T> treeNode = this;
+                TreeNode<T> mergeNode = null;
                 while (treeNode != null) {
                     treeNode.size--;
+                    if (treeNode.subTrees != null && treeNode.size <= root.mergeThreshold) {
+                        mergeNode = treeNode;
+                    }
                     treeNode = treeNode.parent;
                 }
+                if (mergeNode != null) {
+                    mergeNode.merge();
+                }
+            }
+        }
+
+        //Pulls every leaf of the subtree into this node and returns the subtrees to the pool
+        private void merge() {
+            if (root.stats != null) {
+                root.stats.merge();
+            }
+            for (TreeNode<T> subTree : subTrees) {
+                subTree.collapseInto(this);
+            }
+            root.treeNodes.addLast(subTrees);
+            subTrees = null;
+        }
+
+        private void collapseInto(TreeNode<T> target) {
+            for (int i = 0; i < leafCount; i++) {
+                LeafNode<T> leafNode = leafs[i];
+                leafNode.parent = target;
+                target.addLeaf(leafNode);
+            }
+            clearLeafs();
+            size = 0;
+            if (subTrees != null) {
+                for (TreeNode<T> subTree : subTrees) {
+                    subTree.collapseInto(target);
+                }
+                root.treeNodes.addLast(subTrees);
+                subTrees = null;
             }
         }
 
+        //Leafs only descend into subtrees that fully contain them, anything else stays here
         public int indexOf(LeafNode<T> leafNode) {
+            if (root.looseness != 1) {
+                return indexOfLoose(leafNode.bounds);
+            }
+            if (!bounds.contains(leafNode.bounds)) {
+                return SELF;
+            }
             return indexOf(leafNode.bounds.minimum, leafNode.bounds.maximum);
         }
 
         public int indexOf(float[] minimum, float[] maximum) {
             assert minimum.length == root.dimensions && maximum.length == root.dimensions;
 
-            boolean[] leftSide = new boolean[root.dimensions];
-            boolean[] rightSide = new boolean[root.dimensions];
-            for (int i = 0; i < root.dimensions; i++) {
-                leftSide[i] = maximum[i] < bounds.middle[i];
-                rightSide[i] = minimum[i] > bounds.middle[i];
+            switch (root.dimensions) {
+                case 2:
+                    return indexOf2(minimum, maximum);
+                case 3:
+                    return indexOf3(minimum, maximum);
+                default:
+                    int index = 0;
+                    for (int i = 0; i < root.dimensions; i++) {
+                        int side = sideOf(minimum[i], maximum[i], bounds.middle[i]);
+                        if (side == SELF) {
+                            return SELF;
+                        }
+                        index = index * 2 + side;
+                    }
+                    return index;
+            }
+        }
+
+        private int indexOf2(float[] minimum, float[] maximum) {
+            float[] middle = bounds.middle;
+            int x = sideOf(minimum[0], maximum[0], middle[0]);
+            if (x == SELF) {
+                return SELF;
+            }
+            int y = sideOf(minimum[1], maximum[1], middle[1]);
+            if (y == SELF) {
+                return SELF;
+            }
+            return x << 1 | y;
+        }
+
+        private int indexOf3(float[] minimum, float[] maximum) {
+            float[] middle = bounds.middle;
+            int x = sideOf(minimum[0], maximum[0], middle[0]);
+            if (x == SELF) {
+                return SELF;
+            }
+            int y = sideOf(minimum[1], maximum[1], middle[1]);
+            if (y == SELF) {
+                return SELF;
             }
+            int z = sideOf(minimum[2], maximum[2], middle[2]);
+            if (z == SELF) {
+                return SELF;
+            }
+            return x << 2 | y << 1 | z;
+        }
 
+        //The subtree holding the centre, if its loose bounds contain the whole leaf. Same arithmetic as updateLooseBounds.
+        private int indexOfLoose(Bounds leafBounds) {
             int index = 0;
             for (int i = 0; i < root.dimensions; i++) {
-                if (leftSide[i]) {
-                    index *= 2;
-                } else if (rightSide[i]) {
-                    index = index * 2 + 1;
-                } else {
+                boolean above = leafBounds.middle[i] > bounds.middle[i];
+                float minimum = above ? bounds.middle[i] : bounds.minimum[i];
+                float maximum = above ? bounds.maximum[i] : bounds.middle[i];
+                float margin = (maximum - minimum) * (root.looseness - 1) / 2;
+                if (!(leafBounds.minimum[i] > minimum - margin && leafBounds.maximum[i] < maximum + margin)) {
                     return SELF;
                 }
+                index = index * 2 + (above ? 1 : 0);
             }
             return index;
         }
 
+        private void updateLooseBounds() {
+            for (int i = 0; i < root.dimensions; i++) {
+                float margin = (bounds.maximum[i] - bounds.minimum[i]) * (root.looseness - 1) / 2;
+                looseBounds.minimum[i] = bounds.minimum[i] - margin;
+                looseBounds.maximum[i] = bounds.maximum[i] + margin;
+                looseBounds.middle[i] = bounds.middle[i];
+            }
+        }
+
+        //0 if entirely below middle, 1 if entirely above, SELF if it straddles
+        private static int sideOf(float minimum, float maximum, float middle) {
+            return maximum < middle ? 0 : minimum > middle ? 1 : SELF;
+        }
+
         private void distribute() {
-            for (Iterator<LeafNode<T>> it = leafs.iterator(); it.hasNext();) {
-                LeafNode<T> leafNode = it.next();
+            //Backwards, so the leaf swapped into a freed slot has already been looked at
+            for (int i = leafCount - 1; i >= 0; i--) {
+                LeafNode<T> leafNode = leafs[i];
                 int index = indexOf(leafNode);
                 if (index != SELF) {
-                    it.remove();
+                    removeLeaf(leafNode);
                     subTrees[index].insert(leafNode);
                 }
             }
         }
 
         private void split() {
+            if (root.stats != null) {
+                root.stats.split();
+            }
             subTrees = root.obtainTreeNodes();
             for (TreeNode<T> subTree : subTrees) {
                 subTree.parent = this;
@@ -363,6 +1167,7 @@ public class SpatialTree<T extends Leaf> {
         private void setSubtreeBounds(float[] minimum, float[] maximum, int dimension, int index) {
             if (dimension == root.dimensions) {
                 subTrees[index].bounds.setBounds(minimum, maximum);
+                subTrees[index].updateLooseBounds();
             } else {
                 minimum[dimension] = bounds.minimum[dimension];
                 maximum[dimension] = bounds.middle[dimension];
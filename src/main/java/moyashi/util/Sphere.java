@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ * Touching counts as intersecting.
+ *
+ * @author Low Teck Wei
+ */
+public class Sphere implements ShapeQuery {
+
+    public final float[] centre;
+    public float radius;
+
+    public Sphere(float[] centre, float radius) {
+        this.centre = centre.clone();
+        this.radius = radius;
+    }
+
+    public void set(float[] centre, float radius) {
+        assert centre.length == this.centre.length;
+
+        System.arraycopy(centre, 0, this.centre, 0, centre.length);
+        this.radius = radius;
+    }
+
+    @Override
+    public boolean intersects(float[] minimum, float[] maximum) {
+        float distance = 0;
+        for (int i = 0; i < centre.length; i++) {
+            float delta = Math.max(Math.max(minimum[i] - centre[i], centre[i] - maximum[i]), 0);
+            distance += delta * delta;
+        }
+        return distance <= radius * radius;
+    }
+
+    //The farthest corner is inside
+    @Override
+    public boolean contains(float[] minimum, float[] maximum) {
+        float distance = 0;
+        for (int i = 0; i < centre.length; i++) {
+            float delta = Math.max(centre[i] - minimum[i], maximum[i] - centre[i]);
+            distance += delta * delta;
+        }
+        return distance <= radius * radius;
+    }
+}
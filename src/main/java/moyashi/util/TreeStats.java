@@ -0,0 +1,177 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.ObjectName;
+
+/**
+ * Opt-in counters a {@link SpatialTree} or {@link moyashi.quadtree.QuadTree} reports into once set with setStats.
+ * Trees without stats only pay a null check. One instance may be shared by several trees.
+ *
+ * @author Low Teck Wei
+ */
+public class TreeStats implements TreeStatsMXBean {
+
+    private static final TreeStatsSnapshot EMPTY = new TreeStatsSnapshot(null, new int[0], new int[0], 0, 0);
+
+    private final LongAdder searches = new LongAdder();
+    private final LongAdder nodesVisited = new LongAdder();
+    private final LongAdder comparisons = new LongAdder();
+    private final LongAdder splits = new LongAdder();
+    private final LongAdder merges = new LongAdder();
+    private final LongAdder reinsertsAvoided = new LongAdder();
+    private final LongAdder relocations = new LongAdder();
+
+    private volatile TreeStatsSnapshot published = EMPTY;
+
+    public void search() {
+        searches.increment();
+    }
+
+    //A node whose own items were each tested once
+    public void visit(int comparisons) {
+        nodesVisited.increment();
+        this.comparisons.add(comparisons);
+    }
+
+    public void split() {
+        splits.increment();
+    }
+
+    public void merge() {
+        merges.increment();
+    }
+
+    //An update that stayed below its node instead of reinserting from the root
+    public void reinsertAvoided() {
+        reinsertsAvoided.increment();
+    }
+
+    public void relocate() {
+        relocations.increment();
+    }
+
+    //Called by the tree's snapshotStats, so that JMX never walks a tree it does not own
+    public void publish(TreeStatsSnapshot snapshot) {
+        published = snapshot;
+    }
+
+    public TreeStatsSnapshot getPublished() {
+        return published;
+    }
+
+    //Registers under moyashi:type=TreeStats,name=<name> in the platform MBean server
+    public ObjectName register(String name) throws JMException {
+        ObjectName objectName = new ObjectName("moyashi:type=TreeStats,name=" + ObjectName.quote(name));
+        ManagementFactory.getPlatformMBeanServer().registerMBean(this, objectName);
+        return objectName;
+    }
+
+    public void unregister(ObjectName objectName) throws JMException {
+        ManagementFactory.getPlatformMBeanServer().unregisterMBean(objectName);
+    }
+
+    @Override
+    public long getSearches() {
+        return searches.sum();
+    }
+
+    @Override
+    public long getNodesVisited() {
+        return nodesVisited.sum();
+    }
+
+    @Override
+    public long getComparisons() {
+        return comparisons.sum();
+    }
+
+    @Override
+    public double getAverageNodesVisited() {
+        long searches = getSearches();
+        return searches == 0 ? 0 : (double) getNodesVisited() / searches;
+    }
+
+    @Override
+    public double getAverageComparisons() {
+        long searches = getSearches();
+        return searches == 0 ? 0 : (double) getComparisons() / searches;
+    }
+
+    @Override
+    public long getSplits() {
+        return splits.sum();
+    }
+
+    @Override
+    public long getMerges() {
+        return merges.sum();
+    }
+
+    @Override
+    public long getReinsertsAvoided() {
+        return reinsertsAvoided.sum();
+    }
+
+    @Override
+    public long getRelocations() {
+        return relocations.sum();
+    }
+
+    @Override
+    public int getItemCount() {
+        return published.getItemCount();
+    }
+
+    @Override
+    public int getRootItems() {
+        return published.getRootItems();
+    }
+
+    @Override
+    public int getMaxDepth() {
+        return published.getMaxDepth();
+    }
+
+    @Override
+    public int[] getItemsPerDepth() {
+        return published.getItemsPerDepth();
+    }
+
+    @Override
+    public int[] getNodesPerDepth() {
+        return published.getNodesPerDepth();
+    }
+
+    @Override
+    public int getTreeNodeCount() {
+        return published.getTreeNodeCount();
+    }
+
+    @Override
+    public int getTreeNodeHighWaterMark() {
+        return published.getTreeNodeHighWaterMark();
+    }
+
+    @Override
+    public int getLeafNodeHighWaterMark() {
+        return published.getLeafNodeHighWaterMark();
+    }
+
+    @Override
+    public void reset() {
+        searches.reset();
+        nodesVisited.reset();
+        comparisons.reset();
+        splits.reset();
+        merges.reset();
+        reinsertsAvoided.reset();
+        relocations.reset();
+    }
+}
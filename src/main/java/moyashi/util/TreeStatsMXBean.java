@@ -0,0 +1,50 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+//Counters are live, the tree shape is as of the owner's last snapshotStats call
+public interface TreeStatsMXBean {
+
+    public long getSearches();
+
+    public long getNodesVisited();
+
+    public long getComparisons();
+
+    public double getAverageNodesVisited();
+
+    public double getAverageComparisons();
+
+    public long getSplits();
+
+    public long getMerges();
+
+    public long getReinsertsAvoided();
+
+    public long getRelocations();
+
+    public int getItemCount();
+
+    public int getRootItems();
+
+    public int getMaxDepth();
+
+    public int[] getItemsPerDepth();
+
+    public int[] getNodesPerDepth();
+
+    public int getTreeNodeCount();
+
+    public int getTreeNodeHighWaterMark();
+
+    public int getLeafNodeHighWaterMark();
+
+    public void reset();
+}
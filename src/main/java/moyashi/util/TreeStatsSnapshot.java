@@ -0,0 +1,114 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+/**
+ * Immutable copy of a tree's counters and shape, depth 0 is the root.
+ *
+ * @author Low Teck Wei
+ */
+public class TreeStatsSnapshot {
+
+    private final long searches, nodesVisited, comparisons, splits, merges, reinsertsAvoided, relocations;
+    private final int[] itemsPerDepth, nodesPerDepth;
+    private final int itemCount, treeNodeCount, treeNodeHighWaterMark, leafNodeHighWaterMark;
+
+    //Counters are read from stats, all 0 when stats is null. The arrays are kept, not copied.
+    //High-water marks are the most nodes the tree has had in use at once.
+    public TreeStatsSnapshot(TreeStats stats, int[] itemsPerDepth, int[] nodesPerDepth, int treeNodeHighWaterMark, int leafNodeHighWaterMark) {
+        assert itemsPerDepth.length == nodesPerDepth.length;
+
+        searches = stats == null ? 0 : stats.getSearches();
+        nodesVisited = stats == null ? 0 : stats.getNodesVisited();
+        comparisons = stats == null ? 0 : stats.getComparisons();
+        splits = stats == null ? 0 : stats.getSplits();
+        merges = stats == null ? 0 : stats.getMerges();
+        reinsertsAvoided = stats == null ? 0 : stats.getReinsertsAvoided();
+        relocations = stats == null ? 0 : stats.getRelocations();
+
+        this.itemsPerDepth = itemsPerDepth;
+        this.nodesPerDepth = nodesPerDepth;
+        int itemCount = 0, treeNodeCount = 0;
+        for (int i = 0; i < itemsPerDepth.length; i++) {
+            itemCount += itemsPerDepth[i];
+            treeNodeCount += nodesPerDepth[i];
+        }
+        this.itemCount = itemCount;
+        this.treeNodeCount = treeNodeCount;
+        this.treeNodeHighWaterMark = treeNodeHighWaterMark;
+        this.leafNodeHighWaterMark = leafNodeHighWaterMark;
+    }
+
+    public long getSearches() {
+        return searches;
+    }
+
+    public long getNodesVisited() {
+        return nodesVisited;
+    }
+
+    public long getComparisons() {
+        return comparisons;
+    }
+
+    public double getAverageNodesVisited() {
+        return searches == 0 ? 0 : (double) nodesVisited / searches;
+    }
+
+    public double getAverageComparisons() {
+        return searches == 0 ? 0 : (double) comparisons / searches;
+    }
+
+    public long getSplits() {
+        return splits;
+    }
+
+    public long getMerges() {
+        return merges;
+    }
+
+    public long getReinsertsAvoided() {
+        return reinsertsAvoided;
+    }
+
+    public long getRelocations() {
+        return relocations;
+    }
+
+    public int getItemCount() {
+        return itemCount;
+    }
+
+    //Tree nodes currently in use
+    public int getTreeNodeCount() {
+        return treeNodeCount;
+    }
+
+    public int getRootItems() {
+        return itemsPerDepth.length == 0 ? 0 : itemsPerDepth[0];
+    }
+
+    public int getMaxDepth() {
+        return itemsPerDepth.length - 1;
+    }
+
+    //Items held by the nodes at each depth
+    public int[] getItemsPerDepth() {
+        return itemsPerDepth.clone();
+    }
+
+    public int[] getNodesPerDepth() {
+        return nodesPerDepth.clone();
+    }
+
+    public int getTreeNodeHighWaterMark() {
+        return treeNodeHighWaterMark;
+    }
+
+    public int getLeafNodeHighWaterMark() {
+        return leafNodeHighWaterMark;
+    }
+}
@@ -0,0 +1,247 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public class ConcurrentQuadTreeTest {
+
+    private static final float WORLD_SIZE = 1000;
+    private static final int PARTITIONS = 4, WRITERS = 4, READERS = 2, SEARCHES = 2000;
+    //Spans the middle two partitions on both axes
+    private static final float WINDOW_MIN = 300, WINDOW_SIZE = 400;
+
+    //Items hop between partitions while staying inside the window, so every search must report each exactly once
+    @Test
+    public void searchSeesMovingItemsExactlyOnce() throws Exception {
+        ConcurrentQuadTree<Item> quadTree = new ConcurrentQuadTree<>(4, PARTITIONS, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        Random random = new Random(12);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 2000; i++) {
+            Item item = new Item();
+            moveInsideWindow(item, random);
+            items.add(item);
+            quadTree.insert(item);
+        }
+
+        AtomicBoolean done = new AtomicBoolean();
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS + READERS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                writers.add(executor.submit(() -> {
+                    Random moves = new Random(writer);
+                    while (!done.get()) {
+                        //Each writer owns every WRITERS-th item, so an item's bounds only change on its own thread
+                        Item item = items.get(moves.nextInt(items.size() / WRITERS) * WRITERS + writer);
+                        moveInsideWindow(item, moves);
+                        quadTree.insert(item);
+                    }
+                }));
+            }
+            List<Future<String>> readers = new ArrayList<>();
+            for (int r = 0; r < READERS; r++) {
+                readers.add(executor.submit(() -> {
+                    Map<Item, Integer> seen = new IdentityHashMap<>();
+                    for (int i = 0; i < SEARCHES; i++) {
+                        seen.clear();
+                        quadTree.search(item -> {
+                            seen.merge(item, 1, Integer::sum);
+                            return true;
+                        }, WINDOW_MIN, WINDOW_MIN, WINDOW_SIZE, WINDOW_SIZE);
+                        if (seen.size() != items.size() || seen.values().stream().anyMatch(count -> count != 1)) {
+                            return "search " + i + " saw " + seen.size() + " distinct of " + items.size();
+                        }
+                    }
+                    return null;
+                }));
+            }
+            for (Future<String> reader : readers) {
+                String failure = reader.get();
+                assertNull(failure, failure);
+            }
+            done.set(true);
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            done.set(true);
+            executor.shutdownNow();
+        }
+        assertEquals(items.size(), quadTree.size());
+    }
+
+    @Test
+    public void concurrentInsertAndRemoveKeepTreeConsistent() throws Exception {
+        ConcurrentQuadTree<Item> quadTree = new ConcurrentQuadTree<>(8, PARTITIONS, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        List<Item> items = new ArrayList<>();
+        for (int i = 0; i < 8000; i++) {
+            items.add(new Item());
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(WRITERS);
+        try {
+            List<Future<?>> writers = new ArrayList<>();
+            for (int w = 0; w < WRITERS; w++) {
+                int writer = w;
+                writers.add(executor.submit(() -> {
+                    Random random = new Random(writer);
+                    for (int i = 0; i < 50000; i++) {
+                        Item item = items.get(random.nextInt(items.size() / WRITERS) * WRITERS + writer);
+                        if (random.nextInt(5) == 0) {
+                            quadTree.remove(item);
+                        } else {
+                            //Partly outside the world, these belong to the edge partitions
+                            item.set(random.nextFloat() * 1100 - 50, random.nextFloat() * 1100 - 50, random.nextFloat() * 30, random.nextFloat() * 30);
+                            quadTree.insert(item);
+                        }
+                    }
+                }));
+            }
+            for (Future<?> writer : writers) {
+                writer.get();
+            }
+        } finally {
+            executor.shutdownNow();
+        }
+
+        List<Item> all = quadTree.search(new ArrayList<>(), -WORLD_SIZE, -WORLD_SIZE, WORLD_SIZE * 3, WORLD_SIZE * 3);
+        Set<Item> live = new HashSet<>(all);
+        assertEquals(all.size(), live.size());
+        assertEquals(quadTree.size(), live.size());
+
+        Random random = new Random(3);
+        for (int i = 0; i < 500; i++) {
+            float minX = random.nextFloat() * WORLD_SIZE, minY = random.nextFloat() * WORLD_SIZE, size = random.nextFloat() * 300;
+            int expected = 0;
+            for (Item item : live) {
+                if (item.intersects(minX, minY, size, size)) {
+                    expected++;
+                }
+            }
+            assertEquals(expected, quadTree.count(minX, minY, size, size));
+        }
+    }
+
+    //Once the large item is gone, a search must neither lock overflow nor partitions far from its window
+    @Test
+    public void overflowIsOnlyLockedWhileItHoldsItems() throws Exception {
+        ConcurrentQuadTree<Item> quadTree = new ConcurrentQuadTree<>(4, PARTITIONS, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        Item small = new Item();
+        small.set(10, 10, 5, 5);
+        quadTree.insert(small);
+        Item large = new Item();
+        large.set(0, 0, 900, 900);
+        quadTree.insert(large);
+        assertEquals(2, quadTree.count(5, 5, 20, 20));
+        assertEquals(1, quadTree.count(800, 800, 20, 20));
+        assertEquals(0, quadTree.count(950, 950, 20, 20));
+
+        quadTree.remove(large);
+        assertEquals(1, quadTree.count(5, 5, 20, 20));
+        assertEquals(0, quadTree.count(800, 800, 20, 20));
+        assertEquals(1, quadTree.size());
+
+        CountDownLatch searching = new CountDownLatch(1), release = new CountDownLatch(1);
+        ExecutorService executor = Executors.newFixedThreadPool(2);
+        try {
+            //Holds its locks until released
+            Future<?> reader = executor.submit(() -> quadTree.search(item -> {
+                searching.countDown();
+                try {
+                    release.await();
+                } catch (InterruptedException ex) {
+                    Thread.currentThread().interrupt();
+                }
+                return true;
+            }, 5, 5, 20, 20));
+            assertTrue(searching.await(10, TimeUnit.SECONDS));
+
+            Item far = new Item();
+            far.set(900, 900, 5, 5);
+            executor.submit(() -> quadTree.insert(far)).get(10, TimeUnit.SECONDS);
+            executor.submit(() -> quadTree.insert(large)).get(10, TimeUnit.SECONDS);
+            release.countDown();
+            reader.get();
+        } finally {
+            release.countDown();
+            executor.shutdownNow();
+        }
+        assertEquals(3, quadTree.size());
+        assertEquals(2, quadTree.count(890, 890, 20, 20));
+    }
+
+    //Some items start in a partition left of or below the window and only reach into it, so searches must look past the
+    //window. Those larger than a partition hop in and out of overflow
+    private static void moveInsideWindow(Item item, Random random) {
+        if (random.nextInt(4) == 0) {
+            float size = WINDOW_SIZE / 2 + random.nextFloat() * 100;
+            item.set(WINDOW_MIN + 10 - size, WINDOW_MIN + 10 - size, size, size);
+        } else {
+            float size = 1 + random.nextFloat() * 20;
+            item.set(WINDOW_MIN + random.nextFloat() * (WINDOW_SIZE - size), WINDOW_MIN + random.nextFloat() * (WINDOW_SIZE - size), size, size);
+        }
+        assertTrue(item.intersects(WINDOW_MIN, WINDOW_MIN, WINDOW_SIZE, WINDOW_SIZE));
+    }
+
+    private static class Item implements Leaf {
+
+        public float minX, minY, width, height;
+
+        public void set(float minX, float minY, float width, float height) {
+            this.minX = minX;
+            this.minY = minY;
+            this.width = width;
+            this.height = height;
+        }
+
+        public boolean intersects(float minX, float minY, float width, float height) {
+            return minX < this.minX + this.width && minX + width > this.minX
+                    && minY < this.minY + this.height && minY + height > this.minY;
+        }
+
+        @Override
+        public float getMinX() {
+            return minX;
+        }
+
+        @Override
+        public float getMinY() {
+            return minY;
+        }
+
+        @Override
+        public float getWidth() {
+            return width;
+        }
+
+        @Override
+        public float getHeight() {
+            return height;
+        }
+    }
+}
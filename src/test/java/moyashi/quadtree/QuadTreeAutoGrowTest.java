@@ -0,0 +1,145 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.quadtree;
+
+import java.util.ArrayList;
+import java.util.List;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import org.junit.Test;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public class QuadTreeAutoGrowTest {
+
+    private static final float WORLD_SIZE = 100, FAR = 5000;
+
+    @Test
+    public void refreshGrowsRoot() {
+        QuadTree<Item> quadTree = new QuadTree<>(4, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        Item item = moveFarAway(quadTree);
+        quadTree.refresh();
+        assertGrown(quadTree, item);
+    }
+
+    @Test
+    public void refreshDirtyGrowsRoot() {
+        QuadTree<Item> quadTree = new QuadTree<>(4, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        Item item = moveFarAway(quadTree);
+        quadTree.markDirty(item);
+        quadTree.refreshDirty();
+        assertGrown(quadTree, item);
+    }
+
+    @Test
+    public void refreshParallelGrowsRoot() {
+        QuadTree<Item> quadTree = new QuadTree<>(4, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        Item item = moveFarAway(quadTree);
+        quadTree.refreshParallel();
+        assertGrown(quadTree, item);
+    }
+
+    //Every item lies in one quadrant of the constructed root, which must still not be dropped
+    @Test
+    public void shrinkStopsAtConstructedBounds() {
+        QuadTree<Item> quadTree = new QuadTree<>(4, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        fillCorner(quadTree);
+        Item item = moveFarAway(quadTree);
+        quadTree.refresh();
+        assertTrue(rootBounds(quadTree).width > WORLD_SIZE);
+
+        quadTree.remove(item);
+        quadTree.shrink();
+        assertBounds(quadTree, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        assertEquals(8, quadTree.search(new ArrayList<>(), 0, 0, WORLD_SIZE, WORLD_SIZE).size());
+    }
+
+    @Test
+    public void shrinkStopsAtResizedBounds() {
+        QuadTree<Item> quadTree = new QuadTree<>(4, 0, 0, WORLD_SIZE, WORLD_SIZE);
+        quadTree.resize(0, 0, WORLD_SIZE * 2, WORLD_SIZE * 2);
+        fillCorner(quadTree);
+        quadTree.setLooseness(1.5f);
+        quadTree.shrink();
+        assertBounds(quadTree, 0, 0, WORLD_SIZE * 2, WORLD_SIZE * 2);
+    }
+
+    //Enough items near the origin to split the root
+    private static void fillCorner(QuadTree<Item> quadTree) {
+        for (int i = 0; i < 8; i++) {
+            quadTree.insert(new Item(5 + i * 2, 5 + i * 2));
+        }
+    }
+
+    private static void assertBounds(QuadTree<Item> quadTree, float minX, float minY, float width, float height) {
+        Rectangle root = rootBounds(quadTree);
+        assertEquals(minX, root.minX, 0);
+        assertEquals(minY, root.minY, 0);
+        assertEquals(width, root.width, 0);
+        assertEquals(height, root.height, 0);
+    }
+
+    //Held by the root itself, the case a plain containment check against its parent misses
+    private static Item moveFarAway(QuadTree<Item> quadTree) {
+        quadTree.setAutoGrow(true);
+        Item item = new Item(10, 10);
+        quadTree.insert(item);
+        item.minX = FAR;
+        item.minY = FAR;
+        return item;
+    }
+
+    private static void assertGrown(QuadTree<Item> quadTree, Item item) {
+        Rectangle root = rootBounds(quadTree);
+        assertTrue("root width " + root.width, root.contains(new Rectangle(item.minX, item.minY, item.width, item.height)));
+        assertEquals(1, quadTree.size(), 0);
+        List<Item> found = quadTree.search(new ArrayList<>(), FAR - 1, FAR - 1, 2, 2);
+        assertEquals(1, found.size());
+    }
+
+    private static Rectangle rootBounds(QuadTree<Item> quadTree) {
+        Rectangle root = new Rectangle();
+        //Depth first, so the first node visited is the root
+        quadTree.traverse((bounds, items) -> {
+            if (root.width == 0) {
+                root.set(bounds);
+            }
+        });
+        return root;
+    }
+
+    private static class Item implements Leaf {
+
+        public float minX, minY, width = 1, height = 1;
+
+        public Item(float minX, float minY) {
+            this.minX = minX;
+            this.minY = minY;
+        }
+
+        @Override
+        public float getMinX() {
+            return minX;
+        }
+
+        @Override
+        public float getMinY() {
+            return minY;
+        }
+
+        @Override
+        public float getWidth() {
+            return width;
+        }
+
+        @Override
+        public float getHeight() {
+            return height;
+        }
+    }
+}
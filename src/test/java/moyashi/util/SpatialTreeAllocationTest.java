@@ -0,0 +1,197 @@
+/*
+ * To change this license header, choose License Headers in Project Properties.
+ * To change this template file, choose Tools | Templates
+ * and open the template in the editor.
+ */
+package moyashi.util;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.function.IntSupplier;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ *
+ * @author Low Teck Wei
+ */
+public class SpatialTreeAllocationTest {
+
+    private static final int DIMENSIONS = 3;
+    private static final float WORLD_SIZE = 1000;
+    private static final int ITEMS = 10000, QUERIES = 10000, WARMUP_ROUNDS = 5;
+
+    private com.sun.management.ThreadMXBean allocations;
+    private SpatialTree<Item> spatialTree;
+    private Item[] items;
+    private float[][] minimums, maximums;
+
+    @Before
+    public void setup() {
+        java.lang.management.ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+        assumeTrue(threadMXBean instanceof com.sun.management.ThreadMXBean);
+        allocations = (com.sun.management.ThreadMXBean) threadMXBean;
+        assumeTrue(allocations.isThreadAllocatedMemorySupported());
+        allocations.setThreadAllocatedMemoryEnabled(true);
+
+        Random random = new Random(4);
+        spatialTree = new SpatialTree<>(DIMENSIONS, 8);
+        float[] worldMaximum = new float[DIMENSIONS];
+        Arrays.fill(worldMaximum, WORLD_SIZE);
+        spatialTree.resize(new float[DIMENSIONS], worldMaximum);
+        items = new Item[ITEMS];
+        for (int i = 0; i < ITEMS; i++) {
+            spatialTree.insert(items[i] = new Item(random));
+        }
+        minimums = new float[QUERIES][DIMENSIONS];
+        maximums = new float[QUERIES][DIMENSIONS];
+        for (int i = 0; i < QUERIES; i++) {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                minimums[i][d] = random.nextFloat() * 950;
+                maximums[i][d] = minimums[i][d] + 50;
+            }
+        }
+    }
+
+    @Test
+    public void countAllocatesNothing() {
+        int counted = assertAllocationFree("count", QUERIES, () -> {
+            int count = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                count += spatialTree.count(minimums[i], maximums[i]);
+            }
+            return count;
+        });
+        assertTrue(counted > 0);
+    }
+
+    @Test
+    public void searchWithConsumerAllocatesNothing() {
+        Counter counter = new Counter();
+        int counted = assertAllocationFree("search", QUERIES, () -> {
+            counter.count = 0;
+            for (int i = 0; i < QUERIES; i++) {
+                spatialTree.search(counter, minimums[i], maximums[i]);
+            }
+            return counter.count;
+        });
+        assertTrue(counted > 0);
+    }
+
+    //Reinserting items that stayed in their node is the common case of a game tick
+    @Test
+    public void insertOnWarmTreeAllocatesNothing() {
+        assertAllocationFree("insert", ITEMS, () -> {
+            for (Item item : items) {
+                spatialTree.insert(item);
+            }
+            return spatialTree.size();
+        });
+    }
+
+    @Test
+    public void updateAllocatesNothing() {
+        assertAllocationFree("update", ITEMS, () -> {
+            spatialTree.update();
+            return spatialTree.size();
+        });
+    }
+
+    @Test
+    public void updateDirtyAllocatesNothing() {
+        assertAllocationFree("updateDirty", ITEMS, () -> {
+            for (Item item : items) {
+                spatialTree.markDirty(item);
+            }
+            spatialTree.updateDirty();
+            return spatialTree.size();
+        });
+    }
+
+    //Mirroring every item across the world moves nearly all of them to another node, an even number of rounds
+    //restores the tree, so warm rounds find every node and leaf array already sized
+    @Test
+    public void moveAcrossNodesAllocatesNothing() {
+        assertAllocationFree("move", ITEMS, () -> {
+            for (Item item : items) {
+                item.mirror();
+            }
+            spatialTree.update();
+            return spatialTree.size();
+        });
+    }
+
+    //Warms work up, then checks that running it once more allocated well under one byte per operation
+    private int assertAllocationFree(String name, int operations, IntSupplier work) {
+        //Compiled and with the tree's buffers already sized
+        int expected = 0;
+        for (int round = 0; round < WARMUP_ROUNDS; round++) {
+            expected = work.getAsInt();
+        }
+
+        long threadId = Thread.currentThread().getId();
+        //What reading the counter costs by itself
+        long before = allocations.getThreadAllocatedBytes(threadId);
+        long overhead = allocations.getThreadAllocatedBytes(threadId) - before;
+
+        before = allocations.getThreadAllocatedBytes(threadId);
+        int result = work.getAsInt();
+        long allocated = allocations.getThreadAllocatedBytes(threadId) - before - overhead;
+
+        assertEquals(expected, result);
+        //Anything per operation would add up to at least operations * 16 bytes
+        assertTrue(name + " allocated " + allocated + " bytes over " + operations + " operations", allocated < operations);
+        return result;
+    }
+
+    private static class Counter implements IntersectionConsumer<Item> {
+
+        public int count;
+
+        @Override
+        public boolean accept(Item item) {
+            count++;
+            return true;
+        }
+    }
+
+    private static class Item implements Leaf {
+
+        public final float[] minimum = new float[DIMENSIONS];
+        public final float[] maximum = new float[DIMENSIONS];
+
+        public Item(Random random) {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                minimum[d] = random.nextFloat() * 990;
+                maximum[d] = minimum[d] + random.nextFloat() * 10;
+            }
+        }
+
+        public void mirror() {
+            for (int d = 0; d < DIMENSIONS; d++) {
+                float minimum = this.minimum[d];
+                this.minimum[d] = WORLD_SIZE - maximum[d];
+                maximum[d] = WORLD_SIZE - minimum;
+            }
+        }
+
+        @Override
+        public void getMinimum(float[] minimum) {
+            System.arraycopy(this.minimum, 0, minimum, 0, DIMENSIONS);
+        }
+
+        @Override
+        public void getMaximum(float[] maximum) {
+            System.arraycopy(this.maximum, 0, maximum, 0, DIMENSIONS);
+        }
+
+        @Override
+        public boolean isStatic() {
+            return false;
+        }
+    }
+}